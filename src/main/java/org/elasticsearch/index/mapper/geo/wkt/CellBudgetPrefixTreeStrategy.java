@@ -0,0 +1,81 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.spatial.prefix.RecursivePrefixTreeStrategy;
+import org.apache.lucene.spatial.prefix.tree.Cell;
+import org.apache.lucene.spatial.prefix.tree.CellIterator;
+import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTree;
+import org.apache.lucene.spatial.query.SpatialArgs;
+
+import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Shape;
+import com.spatial4j.core.shape.SpatialRelation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link RecursivePrefixTreeStrategy} that limits the number of cells
+ * indexed per shape.
+ * <p>
+ * Cells within the shape already stop at the coarsest level that fits, only
+ * cells crossing the boundary are refined down to the detail level. If the
+ * shape would need more than {@code maxCells} cells, the finest detail level
+ * that fits is used instead, so only the boundary loses precision. Points are
+ * always indexed at full precision.
+ */
+class CellBudgetPrefixTreeStrategy extends RecursivePrefixTreeStrategy {
+
+    private final int maxCells;
+
+    /**
+     * @param maxCells
+     *            The maximum number of cells per shape, unlimited if not
+     *            positive.
+     */
+    CellBudgetPrefixTreeStrategy(SpatialPrefixTree grid, String fieldName, int maxCells) {
+        super(grid, fieldName);
+        this.maxCells = maxCells;
+    }
+
+    @Override
+    public Field[] createIndexableFields(Shape shape) {
+        if (maxCells <= 0 || shape instanceof Point) {
+            return super.createIndexableFields(shape);
+        }
+        int maxLevel = grid.getLevelForDistance(SpatialArgs.calcDistanceFromErrPct(shape, distErrPct, ctx));
+        return createIndexableFields(shape, detailLevel(shape, maxLevel));
+    }
+
+    /**
+     * Counts the cells of the shape level by level, in a single pass that
+     * stops as soon as the budget is exceeded. The cells are counted before
+     * pruning leafy branches, which would need all of them at once, so the
+     * count is an upper bound.
+     *
+     * @return The finest level up to {@code maxLevel} of which the cells and
+     *         their ancestors fit in the budget, at least 1.
+     */
+    private int detailLevel(Shape shape, int maxLevel) {
+        List<Cell> parents = Collections.singletonList(grid.getWorldCell());
+        int count = 0;
+        for (int level = 1; level <= maxLevel; level++) {
+            List<Cell> next = new ArrayList<>();
+            for (Cell parent : parents) {
+                CellIterator cells = parent.getNextLevelCells(shape);
+                while (cells.hasNext()) {
+                    Cell cell = cells.next();
+                    if (++count > maxCells) {
+                        return Math.max(1, level - 1);
+                    }
+                    if (cell.getShapeRel() != SpatialRelation.WITHIN) {
+                        next.add(cell);
+                    }
+                }
+            }
+            parents = next;
+        }
+        return maxLevel;
+    }
+}
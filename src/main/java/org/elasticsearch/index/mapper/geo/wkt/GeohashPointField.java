@@ -0,0 +1,130 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.BytesTermAttribute;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.spatial.prefix.PrefixTreeStrategy;
+import org.apache.lucene.spatial.prefix.tree.GeohashPrefixTree;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Pre-tokenized {@link Field} for a point indexed in a
+ * {@link GeohashPrefixTree}.
+ * <p>
+ * A point is always indexed at the maximum level of the tree, as one token per
+ * level: every prefix of its full length geohash. Instead of walking the
+ * prefix tree cells, this field computes the geohash directly from lon/lat,
+ * into a token stream that Lucene reuses per indexing thread.
+ */
+class GeohashPointField extends Field {
+
+    private static final byte[] BASE_32 = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'j',
+            'k', 'm', 'n', 'p', 'q', 'r', 's', 't', 'u', 'v', 'w', 'x', 'y', 'z' };
+
+    private final double lon;
+    private final double lat;
+    private final int levels;
+
+    /**
+     * @param name
+     *            The name of the field, as used by the prefix tree strategy.
+     * @param lon
+     *            The longitude of the point.
+     * @param lat
+     *            The latitude of the point.
+     * @param levels
+     *            The maximum level of the {@link GeohashPrefixTree}.
+     */
+    GeohashPointField(String name, double lon, double lat, int levels) {
+        super(name, PrefixTreeStrategy.FIELD_TYPE);
+        this.lon = lon;
+        this.lat = lat;
+        this.levels = levels;
+    }
+
+    @Override
+    public TokenStream tokenStream(Analyzer analyzer, TokenStream reuse) {
+        GeohashTokenStream tokenStream;
+        if (reuse instanceof GeohashTokenStream) {
+            tokenStream = (GeohashTokenStream) reuse;
+        } else {
+            tokenStream = new GeohashTokenStream();
+        }
+        tokenStream.setGeohash(lon, lat, levels);
+        return tokenStream;
+    }
+
+    /**
+     * Encodes lon/lat as a geohash of {@code length} characters into
+     * {@code hash}. Points on a cell boundary go to the lower cell, exactly
+     * like {@link com.spatial4j.core.io.GeohashUtils#encodeLatLon}, which
+     * the {@link GeohashPrefixTree} uses.
+     */
+    static void encodeGeohash(double lon, double lat, byte[] hash, int length) {
+        double minLon = -180, maxLon = 180;
+        double minLat = -90, maxLat = 90;
+        boolean isLon = true;
+        for (int i = 0; i < length; i++) {
+            int ch = 0;
+            for (int bit = 0; bit < 5; bit++) {
+                ch <<= 1;
+                if (isLon) {
+                    double mid = (minLon + maxLon) / 2;
+                    if (lon > mid) {
+                        ch |= 1;
+                        minLon = mid;
+                    } else {
+                        maxLon = mid;
+                    }
+                } else {
+                    double mid = (minLat + maxLat) / 2;
+                    if (lat > mid) {
+                        ch |= 1;
+                        minLat = mid;
+                    } else {
+                        maxLat = mid;
+                    }
+                }
+                isLon = !isLon;
+            }
+            hash[i] = BASE_32[ch];
+        }
+    }
+
+    /**
+     * Emits every prefix of a geohash, shortest first. No leaf byte is
+     * appended to the last token, as prefix tree cells at the maximum level
+     * don't carry one.
+     */
+    static final class GeohashTokenStream extends TokenStream {
+
+        private final BytesTermAttribute bytesAtt = addAttribute(BytesTermAttribute.class);
+
+        private final BytesRef bytes = new BytesRef(GeohashPrefixTree.getMaxLevelsPossible());
+
+        private int levels;
+
+        void setGeohash(double lon, double lat, int levels) {
+            encodeGeohash(lon, lat, bytes.bytes, levels);
+            this.levels = levels;
+            bytes.length = 0;
+        }
+
+        @Override
+        public void reset() {
+            bytes.length = 0;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (bytes.length == levels) {
+                return false;
+            }
+            clearAttributes();
+            bytes.length++;
+            bytesAtt.setBytesRef(bytes);
+            return true;
+        }
+    }
+}
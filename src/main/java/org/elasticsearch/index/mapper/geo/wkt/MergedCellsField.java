@@ -0,0 +1,94 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.BytesTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.spatial.prefix.PrefixTreeStrategy;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.io.IOException;
+
+/**
+ * Pre-tokenized {@link Field} for the prefix tree cells of several values.
+ * <p>
+ * Each value is decomposed on its own, at the detail level that fits its own
+ * size, as a shape collection would be decomposed at the detail level of its
+ * bounding box instead. The cells shared by several values are only emitted
+ * once.
+ */
+class MergedCellsField extends Field {
+
+    private final BytesRefHash cells = new BytesRefHash();
+
+    /**
+     * @param name
+     *            The name of the field, as used by the prefix tree strategy.
+     */
+    MergedCellsField(String name) {
+        super(name, PrefixTreeStrategy.FIELD_TYPE);
+    }
+
+    /**
+     * Adds the cells of a field created by the prefix tree strategy, or of a
+     * {@link GeohashPointField}.
+     */
+    void add(Field field) throws IOException {
+        try (TokenStream tokenStream = field.tokenStream(null, null)) {
+            TermToBytesRefAttribute bytesAtt = tokenStream.getAttribute(TermToBytesRefAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                cells.add(bytesAtt.getBytesRef());
+            }
+            tokenStream.end();
+        }
+    }
+
+    @Override
+    public TokenStream tokenStream(Analyzer analyzer, TokenStream reuse) {
+        CellsTokenStream tokenStream;
+        if (reuse instanceof CellsTokenStream) {
+            tokenStream = (CellsTokenStream) reuse;
+        } else {
+            tokenStream = new CellsTokenStream();
+        }
+        tokenStream.setCells(cells);
+        return tokenStream;
+    }
+
+    /**
+     * Emits the cells in the order they were first added.
+     */
+    static final class CellsTokenStream extends TokenStream {
+
+        private final BytesTermAttribute bytesAtt = addAttribute(BytesTermAttribute.class);
+
+        private final BytesRef bytes = new BytesRef();
+
+        private BytesRefHash cells;
+
+        private int next;
+
+        void setCells(BytesRefHash cells) {
+            this.cells = cells;
+            next = 0;
+        }
+
+        @Override
+        public void reset() {
+            next = 0;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next == cells.size()) {
+                return false;
+            }
+            clearAttributes();
+            bytesAtt.setBytesRef(cells.get(next++, bytes));
+            return true;
+        }
+    }
+}
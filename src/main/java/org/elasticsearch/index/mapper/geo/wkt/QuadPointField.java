@@ -0,0 +1,138 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.BytesTermAttribute;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.spatial.prefix.PrefixTreeStrategy;
+import org.apache.lucene.spatial.prefix.tree.PackedQuadPrefixTree;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Pre-tokenized {@link Field} for a point indexed in a
+ * {@link PackedQuadPrefixTree}, the tree of the {@code quadtree} mapping.
+ * <p>
+ * A point is always indexed at the maximum level of the tree, as one token per
+ * level: the 8 byte packed cell of that level. Instead of walking the prefix
+ * tree cells, this field computes the quadrants directly from lon/lat, into a
+ * token stream that Lucene reuses per indexing thread.
+ */
+class QuadPointField extends Field {
+
+    private final double lon;
+    private final double lat;
+    private final int levels;
+
+    /**
+     * @param name
+     *            The name of the field, as used by the prefix tree strategy.
+     * @param lon
+     *            The longitude of the point.
+     * @param lat
+     *            The latitude of the point.
+     * @param levels
+     *            The maximum level of the {@link PackedQuadPrefixTree}.
+     */
+    QuadPointField(String name, double lon, double lat, int levels) {
+        super(name, PrefixTreeStrategy.FIELD_TYPE);
+        this.lon = lon;
+        this.lat = lat;
+        this.levels = levels;
+    }
+
+    @Override
+    public TokenStream tokenStream(Analyzer analyzer, TokenStream reuse) {
+        QuadTokenStream tokenStream;
+        if (reuse instanceof QuadTokenStream) {
+            tokenStream = (QuadTokenStream) reuse;
+        } else {
+            tokenStream = new QuadTokenStream();
+        }
+        tokenStream.setQuads(lon, lat, levels);
+        return tokenStream;
+    }
+
+    /**
+     * Encodes lon/lat as the quadrants of {@code levels} levels, two bits per
+     * level from the most significant bit down, in the order
+     * {@link PackedQuadPrefixTree} visits them: top left, top right, bottom
+     * left, bottom right. Points on a cell boundary go to the first of these
+     * cells, and longitude 180 is the same as -180.
+     */
+    static long encodeQuads(double lon, double lat, int levels) {
+        if (lon == 180) {
+            lon = -180;
+        }
+        double minLon = -180, maxLon = 180;
+        double minLat = -90, maxLat = 90;
+        long quads = 0;
+        for (int level = 1; level <= levels; level++) {
+            long quad = 0;
+            double midLon = (minLon + maxLon) / 2;
+            if (lon > midLon) {
+                quad |= 1;
+                minLon = midLon;
+            } else {
+                maxLon = midLon;
+            }
+            double midLat = (minLat + maxLat) / 2;
+            if (lat < midLat) {
+                quad |= 2;
+                maxLat = midLat;
+            } else {
+                minLat = midLat;
+            }
+            quads |= quad << (64 - (level << 1));
+        }
+        return quads;
+    }
+
+    /**
+     * Emits the packed cell of every level, shortest first: the quadrants up
+     * to that level, the level shifted left by one, and the leaf bit on the
+     * cell at the maximum level.
+     */
+    static final class QuadTokenStream extends TokenStream {
+
+        private final BytesTermAttribute bytesAtt = addAttribute(BytesTermAttribute.class);
+
+        private final BytesRef bytes = new BytesRef(8);
+
+        private long quads;
+
+        private int levels;
+
+        private int level;
+
+        void setQuads(double lon, double lat, int levels) {
+            this.quads = encodeQuads(lon, lat, levels);
+            this.levels = levels;
+            level = 0;
+        }
+
+        @Override
+        public void reset() {
+            level = 0;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (level == levels) {
+                return false;
+            }
+            clearAttributes();
+            level++;
+            // the quadrants below this level are cleared
+            long term = quads & (-1L << (64 - (level << 1))) | (level << 1);
+            if (level == levels) {
+                term |= 1;
+            }
+            for (int i = 0; i < 8; i++) {
+                bytes.bytes[i] = (byte) (term >>> (56 - (i << 3)));
+            }
+            bytes.length = 8;
+            bytesAtt.setBytesRef(bytes);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.common.geo.ShapeRelation;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matches the documents of which the tessellated shapes in a field relate to
+ * a query shape, see {@link WktFieldMapper.Names#TESSELLATE}.
+ * <p>
+ * Candidates are found with numeric range queries on the bounding box of the
+ * shapes, and are then verified against their triangles, so the result is
+ * exact. The triangles are only read for the candidates.
+ */
+class TessellationQuery extends Query {
+
+    static final String MIN_X = "__minX";
+    static final String MAX_X = "__maxX";
+    static final String MIN_Y = "__minY";
+    static final String MAX_Y = "__maxY";
+
+    private final String field;
+    private final Geometry shape;
+    private final ShapeRelation relation;
+
+    /**
+     * @param field
+     *            The index name of the field.
+     * @param shape
+     *            The query shape.
+     * @param relation
+     *            The relation of the indexed shapes to the query shape.
+     */
+    TessellationQuery(String field, Geometry shape, ShapeRelation relation) {
+        this.field = field;
+        this.shape = shape;
+        this.relation = relation;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        final Weight approximationWeight = searcher.createNormalizedWeight(approximation(), false);
+        return new ConstantScoreWeight(this) {
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                Scorer approximationScorer = approximationWeight.scorer(context);
+                if (approximationScorer == null) {
+                    return null;
+                }
+                final DocIdSetIterator approximation = approximationScorer.iterator();
+                final BinaryDocValues triangles = DocValues.getBinary(context.reader(), field + TrianglesField.SUFFIX);
+                final PreparedGeometry prepared = PreparedGeometryFactory.prepare(shape);
+                TwoPhaseIterator twoPhase = new TwoPhaseIterator(approximation) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        return TessellationQuery.this.matches(prepared, triangles.get(approximation.docID()));
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        // relating triangles to the shape is expensive
+                        return 1000;
+                    }
+                };
+                return new ConstantScoreScorer(this, score(), twoPhase);
+            }
+        };
+    }
+
+    /**
+     * The documents of which the bounding box relates to the bounding box of
+     * the query shape. A document with multiple shapes has multiple values per
+     * side, which can only add candidates.
+     */
+    private Query approximation() {
+        Envelope envelope = shape.getEnvelopeInternal();
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        switch (relation) {
+        case INTERSECTS:
+            builder.add(range(MIN_X, null, envelope.getMaxX()), Occur.FILTER);
+            builder.add(range(MAX_X, envelope.getMinX(), null), Occur.FILTER);
+            builder.add(range(MIN_Y, null, envelope.getMaxY()), Occur.FILTER);
+            builder.add(range(MAX_Y, envelope.getMinY(), null), Occur.FILTER);
+            break;
+        case WITHIN:
+            builder.add(range(MIN_X, envelope.getMinX(), null), Occur.FILTER);
+            builder.add(range(MAX_X, null, envelope.getMaxX()), Occur.FILTER);
+            builder.add(range(MIN_Y, envelope.getMinY(), null), Occur.FILTER);
+            builder.add(range(MAX_Y, null, envelope.getMaxY()), Occur.FILTER);
+            break;
+        case CONTAINS:
+            builder.add(range(MIN_X, null, envelope.getMinX()), Occur.FILTER);
+            builder.add(range(MAX_X, envelope.getMaxX(), null), Occur.FILTER);
+            builder.add(range(MIN_Y, null, envelope.getMinY()), Occur.FILTER);
+            builder.add(range(MAX_Y, envelope.getMaxY(), null), Occur.FILTER);
+            break;
+        default:
+            // every document with a shape
+            builder.add(range(MIN_X, null, null), Occur.FILTER);
+        }
+        return builder.build();
+    }
+
+    private NumericRangeQuery<Double> range(String side, Double min, Double max) {
+        return NumericRangeQuery.newDoubleRange(field + side, min, max, true, true);
+    }
+
+    private boolean matches(PreparedGeometry prepared, BytesRef triangles) {
+        GeometryFactory factory = shape.getFactory();
+        switch (relation) {
+        case INTERSECTS:
+            for (int i = 0; i < TrianglesField.size(triangles); i += Tessellator.TRIANGLE_SIZE) {
+                if (prepared.intersects(triangle(factory, triangles, i))) {
+                    return true;
+                }
+            }
+            return false;
+        case DISJOINT:
+            for (int i = 0; i < TrianglesField.size(triangles); i += Tessellator.TRIANGLE_SIZE) {
+                if (prepared.intersects(triangle(factory, triangles, i))) {
+                    return false;
+                }
+            }
+            return true;
+        case WITHIN:
+            for (int i = 0; i < TrianglesField.size(triangles); i += Tessellator.TRIANGLE_SIZE) {
+                if (!prepared.covers(triangle(factory, triangles, i))) {
+                    return false;
+                }
+            }
+            return true;
+        default:
+            List<Geometry> geometries = new ArrayList<>();
+            for (int i = 0; i < TrianglesField.size(triangles); i += Tessellator.TRIANGLE_SIZE) {
+                geometries.add(triangle(factory, triangles, i));
+            }
+            return factory.buildGeometry(geometries).union().covers(shape);
+        }
+    }
+
+    /**
+     * The triangle at the offset as a polygon, or as a line or point if it is
+     * degenerate.
+     */
+    private static Geometry triangle(GeometryFactory factory, BytesRef triangles, int offset) {
+        Coordinate a = new Coordinate(TrianglesField.coordinate(triangles, offset),
+                TrianglesField.coordinate(triangles, offset + 1));
+        Coordinate b = new Coordinate(TrianglesField.coordinate(triangles, offset + 2),
+                TrianglesField.coordinate(triangles, offset + 3));
+        Coordinate c = new Coordinate(TrianglesField.coordinate(triangles, offset + 4),
+                TrianglesField.coordinate(triangles, offset + 5));
+        if (a.equals2D(b) && a.equals2D(c)) {
+            return factory.createPoint(a);
+        } else if (a.equals2D(c)) {
+            return factory.createLineString(new Coordinate[] { a, b });
+        }
+        return factory.createPolygon(factory.createLinearRing(new Coordinate[] { a, b, c, a }), null);
+    }
+
+    @Override
+    public String toString(String field) {
+        return "TessellationQuery(" + this.field + " " + relation.getRelationName() + " " + shape + ")"
+                + ToStringUtils.boost(getBoost());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        TessellationQuery other = (TessellationQuery) obj;
+        return field.equals(other.field) && relation == other.relation && shape.equalsExact(other.shape);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + field.hashCode();
+        result = 31 * result + relation.hashCode();
+        result = 31 * result + shape.getEnvelopeInternal().hashCode();
+        return result;
+    }
+}
@@ -0,0 +1,433 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import com.vividsolutions.jts.algorithm.CGAlgorithms;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.triangulate.ConformingDelaunayTriangulationBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decomposes a JTS {@link Geometry} into triangles, which together cover
+ * exactly the same area.
+ * <p>
+ * Polygons are triangulated by ear clipping, after the holes are bridged into
+ * the shell, so the number of triangles is about the number of vertices. The
+ * few rings ear clipping can't handle fall back to a conforming Delaunay
+ * triangulation. Lines are decomposed into their segments and points into
+ * themselves, as degenerate triangles {@code (a, b, a)} and {@code (a, a, a)}.
+ */
+class Tessellator {
+
+    /** The number of coordinates, x and y, per triangle. */
+    static final int TRIANGLE_SIZE = 6;
+
+    private Tessellator() {
+    }
+
+    /**
+     * @return The triangles as {@code ax, ay, bx, by, cx, cy} each.
+     */
+    static double[] tessellate(Geometry geometry) {
+        Triangles triangles = new Triangles();
+        tessellate(geometry, triangles);
+        return triangles.toArray();
+    }
+
+    private static void tessellate(Geometry geometry, Triangles triangles) {
+        if (geometry.isEmpty()) {
+            return;
+        }
+        if (geometry instanceof Point) {
+            Coordinate a = geometry.getCoordinate();
+            triangles.add(a, a, a);
+        } else if (geometry instanceof LineString) {
+            Coordinate[] coordinates = geometry.getCoordinates();
+            for (int i = 1; i < coordinates.length; i++) {
+                triangles.add(coordinates[i - 1], coordinates[i], coordinates[i - 1]);
+            }
+        } else if (geometry instanceof Polygon) {
+            tessellate((Polygon) geometry, triangles);
+        } else if (geometry instanceof GeometryCollection) {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                tessellate(geometry.getGeometryN(i), triangles);
+            }
+        } else {
+            throw new IllegalArgumentException("cannot tessellate a " + geometry.getGeometryType());
+        }
+    }
+
+    private static void tessellate(Polygon polygon, Triangles triangles) {
+        Triangles earClipped = new Triangles();
+        if (earClip(polygon, earClipped)) {
+            triangles.add(earClipped);
+        } else {
+            triangulate(polygon, triangles);
+        }
+    }
+
+    /**
+     * Ear clipping, after bridging the holes into the shell, which yields
+     * {@code n - 2 + 2h} triangles for {@code n} vertices and {@code h} holes.
+     * The shell is linked counterclockwise, the holes clockwise.
+     *
+     * @return {@code false} if no ear could be found, e.g. for a self
+     *         intersecting ring.
+     */
+    private static boolean earClip(Polygon polygon, Triangles triangles) {
+        Node outer = link(polygon.getExteriorRing().getCoordinates(), true);
+        if (outer == null) {
+            return true;
+        }
+        if (polygon.getNumInteriorRing() > 0) {
+            List<Node> holes = new ArrayList<>();
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                Node hole = link(polygon.getInteriorRingN(i).getCoordinates(), false);
+                if (hole != null) {
+                    holes.add(leftmost(hole));
+                }
+            }
+            Collections.sort(holes, new Comparator<Node>() {
+                @Override
+                public int compare(Node a, Node b) {
+                    return Double.compare(a.x, b.x);
+                }
+            });
+            for (Node hole : holes) {
+                outer = eliminateHole(hole, outer);
+                if (outer == null) {
+                    return false;
+                }
+            }
+        }
+        return earClip(outer, triangles, false);
+    }
+
+    private static boolean earClip(Node ear, Triangles triangles, boolean filtered) {
+        Node stop = ear;
+        while (ear.prev != ear.next) {
+            Node prev = ear.prev;
+            Node next = ear.next;
+            if (isEar(ear)) {
+                triangles.add(prev, ear, next);
+                remove(ear);
+                ear = next.next;
+                stop = next.next;
+                continue;
+            }
+            ear = next;
+            if (ear == stop) {
+                // no ears left, retry once without duplicate and collinear
+                // points, which can hide them
+                return !filtered && earClip(filter(ear, null), triangles, true);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEar(Node ear) {
+        Node a = ear.prev;
+        Node b = ear;
+        Node c = ear.next;
+        if (area(a, b, c) >= 0) {
+            // reflex
+            return false;
+        }
+        for (Node p = c.next; p != a; p = p.next) {
+            if (!equals(p, a) && inTriangle(a, b, c, p) && area(p.prev, p, p.next) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Links the hole into the outer ring, with a bridge from its leftmost
+     * vertex to a vertex of the outer ring it can see.
+     */
+    private static Node eliminateHole(Node hole, Node outer) {
+        Node bridge = findHoleBridge(hole, outer);
+        if (bridge == null) {
+            return null;
+        }
+        Node bridgeReverse = split(bridge, hole);
+        filter(bridgeReverse, bridgeReverse.next);
+        return filter(bridge, bridge.next);
+    }
+
+    private static Node findHoleBridge(Node hole, Node outer) {
+        double hx = hole.x;
+        double hy = hole.y;
+        double qx = Double.NEGATIVE_INFINITY;
+        Node m = null;
+
+        // the nearest segment left of the hole, intersected by a ray to the
+        // left
+        Node p = outer;
+        do {
+            if (hy <= p.y && hy >= p.next.y && p.next.y != p.y) {
+                double x = p.x + (hy - p.y) * (p.next.x - p.x) / (p.next.y - p.y);
+                if (x <= hx && x > qx) {
+                    qx = x;
+                    if (x == hx) {
+                        if (hy == p.y) {
+                            return p;
+                        }
+                        if (hy == p.next.y) {
+                            return p.next;
+                        }
+                    }
+                    m = p.x < p.next.x ? p : p.next;
+                }
+            }
+            p = p.next;
+        } while (p != outer);
+
+        if (m == null || hx == qx) {
+            return m;
+        }
+
+        // the segment's endpoint may be hidden by other vertices, then pick
+        // the vertex with the smallest angle to the ray
+        Node stop = m;
+        double mx = m.x;
+        double my = m.y;
+        double tanMin = Double.POSITIVE_INFINITY;
+        p = m;
+        do {
+            if (hx >= p.x && p.x >= mx && hx != p.x
+                    && inTriangle(hy < my ? hx : qx, hy, mx, my, hy < my ? qx : hx, hy, p.x, p.y)) {
+                double tan = Math.abs(hy - p.y) / (hx - p.x);
+                if (locallyInside(p, hole) && (tan < tanMin || (tan == tanMin && p.x > m.x))) {
+                    m = p;
+                    tanMin = tan;
+                }
+            }
+            p = p.next;
+        } while (p != stop);
+        return m;
+    }
+
+    /**
+     * Whether the diagonal from a to b is inside the ring at a.
+     */
+    private static boolean locallyInside(Node a, Node b) {
+        return area(a.prev, a, a.next) < 0
+                ? area(a, b, a.next) >= 0 && area(a, a.prev, b) >= 0
+                : area(a, b, a.prev) < 0 || area(a, a.next, b) < 0;
+    }
+
+    /**
+     * Connects a and b with a two way bridge, by duplicating both.
+     *
+     * @return The duplicate of b.
+     */
+    private static Node split(Node a, Node b) {
+        Node a2 = new Node(a.x, a.y);
+        Node b2 = new Node(b.x, b.y);
+        Node an = a.next;
+        Node bp = b.prev;
+
+        a.next = b;
+        b.prev = a;
+
+        a2.next = an;
+        an.prev = a2;
+
+        b2.next = a2;
+        a2.prev = b2;
+
+        bp.next = b2;
+        b2.prev = bp;
+
+        return b2;
+    }
+
+    /**
+     * Removes duplicate and collinear points from the ring.
+     */
+    private static Node filter(Node start, Node end) {
+        if (end == null) {
+            end = start;
+        }
+        Node p = start;
+        boolean again;
+        do {
+            again = false;
+            if (equals(p, p.next) || area(p.prev, p, p.next) == 0) {
+                remove(p);
+                p = end = p.prev;
+                if (p == p.next) {
+                    break;
+                }
+                again = true;
+            } else {
+                p = p.next;
+            }
+        } while (again || p != end);
+        return end;
+    }
+
+    /**
+     * Links the coordinates of a closed ring in the given orientation.
+     *
+     * @return A node of the ring, or {@code null} if it has no area.
+     */
+    private static Node link(Coordinate[] ring, boolean counterclockwise) {
+        // the last coordinate repeats the first
+        int size = ring.length - 1;
+        if (size < 3) {
+            return null;
+        }
+        Node last = null;
+        if (counterclockwise == CGAlgorithms.isCCW(ring)) {
+            for (int i = 0; i < size; i++) {
+                last = insert(ring[i], last);
+            }
+        } else {
+            for (int i = size - 1; i >= 0; i--) {
+                last = insert(ring[i], last);
+            }
+        }
+        return filter(last, null);
+    }
+
+    private static Node insert(Coordinate coordinate, Node last) {
+        Node node = new Node(coordinate.x, coordinate.y);
+        if (last == null) {
+            node.prev = node;
+            node.next = node;
+        } else {
+            node.next = last.next;
+            node.prev = last;
+            last.next.prev = node;
+            last.next = node;
+        }
+        return node;
+    }
+
+    private static void remove(Node node) {
+        node.next.prev = node.prev;
+        node.prev.next = node.next;
+    }
+
+    private static Node leftmost(Node start) {
+        Node p = start;
+        Node leftmost = start;
+        do {
+            if (p.x < leftmost.x || (p.x == leftmost.x && p.y < leftmost.y)) {
+                leftmost = p;
+            }
+            p = p.next;
+        } while (p != start);
+        return leftmost;
+    }
+
+    /**
+     * Twice the signed area of the triangle, negative if counterclockwise.
+     */
+    private static double area(Node p, Node q, Node r) {
+        return (q.y - p.y) * (r.x - q.x) - (q.x - p.x) * (r.y - q.y);
+    }
+
+    private static boolean inTriangle(Node a, Node b, Node c, Node p) {
+        return inTriangle(a.x, a.y, b.x, b.y, c.x, c.y, p.x, p.y);
+    }
+
+    private static boolean inTriangle(double ax, double ay, double bx, double by, double cx, double cy, double px,
+            double py) {
+        return (cx - px) * (ay - py) >= (ax - px) * (cy - py)
+                && (ax - px) * (by - py) >= (bx - px) * (ay - py)
+                && (bx - px) * (cy - py) >= (cx - px) * (by - py);
+    }
+
+    private static boolean equals(Node a, Node b) {
+        return a.x == b.x && a.y == b.y;
+    }
+
+    /**
+     * Conforming Delaunay triangulation of the vertices and rings, of which
+     * the triangles in holes and outside the shell are dropped. Handles any
+     * polygon, but may add many vertices to long, thin shapes.
+     */
+    private static void triangulate(Polygon polygon, Triangles triangles) {
+        ConformingDelaunayTriangulationBuilder builder = new ConformingDelaunayTriangulationBuilder();
+        builder.setSites(polygon);
+        builder.setConstraints(polygon);
+        Geometry triangulation = builder.getTriangles(polygon.getFactory());
+
+        // The triangulation covers the convex hull, keep the triangles inside
+        PreparedGeometry prepared = PreparedGeometryFactory.prepare(polygon);
+        for (int i = 0; i < triangulation.getNumGeometries(); i++) {
+            Geometry triangle = triangulation.getGeometryN(i);
+            if (prepared.contains(triangle.getInteriorPoint())) {
+                Coordinate[] coordinates = triangle.getCoordinates();
+                triangles.add(coordinates[0], coordinates[1], coordinates[2]);
+            }
+        }
+    }
+
+    /**
+     * A vertex in a doubly linked ring.
+     */
+    private static class Node {
+        final double x;
+        final double y;
+        Node prev;
+        Node next;
+
+        Node(double x, double y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static class Triangles {
+        private double[] coordinates = new double[16 * TRIANGLE_SIZE];
+        private int size = 0;
+
+        void add(Coordinate a, Coordinate b, Coordinate c) {
+            add(a.x, a.y, b.x, b.y, c.x, c.y);
+        }
+
+        void add(Node a, Node b, Node c) {
+            add(a.x, a.y, b.x, b.y, c.x, c.y);
+        }
+
+        void add(Triangles triangles) {
+            grow(triangles.size);
+            System.arraycopy(triangles.coordinates, 0, coordinates, size, triangles.size);
+            size += triangles.size;
+        }
+
+        private void add(double ax, double ay, double bx, double by, double cx, double cy) {
+            grow(TRIANGLE_SIZE);
+            coordinates[size++] = ax;
+            coordinates[size++] = ay;
+            coordinates[size++] = bx;
+            coordinates[size++] = by;
+            coordinates[size++] = cx;
+            coordinates[size++] = cy;
+        }
+
+        private void grow(int additional) {
+            if (size + additional > coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, Math.max(coordinates.length * 2, size + additional));
+            }
+        }
+
+        double[] toArray() {
+            return Arrays.copyOf(coordinates, size);
+        }
+    }
+}
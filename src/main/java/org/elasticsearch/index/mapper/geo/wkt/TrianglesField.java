@@ -0,0 +1,66 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+
+/**
+ * Binary doc values field with the triangles of all shapes of a field in a
+ * document, see {@link Tessellator}. Every coordinate is encoded as the 8
+ * bytes of its {@code double}, so the triangles are exact.
+ * <p>
+ * A document can only have a single binary doc value per field, so the
+ * triangles of later values are appended to this field.
+ */
+class TrianglesField extends Field {
+
+    static final String SUFFIX = "__triangles";
+
+    static final FieldType TYPE = new FieldType();
+
+    static {
+        TYPE.setDocValuesType(DocValuesType.BINARY);
+        TYPE.freeze();
+    }
+
+    private final BytesRefBuilder bytes = new BytesRefBuilder();
+
+    TrianglesField(String name) {
+        super(name, TYPE);
+    }
+
+    void add(double[] triangles) {
+        for (double coordinate : triangles) {
+            long bits = Double.doubleToLongBits(coordinate);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes.append((byte) (bits >>> shift));
+            }
+        }
+    }
+
+    @Override
+    public BytesRef binaryValue() {
+        return bytes.get();
+    }
+
+    /**
+     * @return The number of coordinates in the encoded triangles.
+     */
+    static int size(BytesRef triangles) {
+        return triangles.length / 8;
+    }
+
+    /**
+     * @return The coordinate at the index in the encoded triangles.
+     */
+    static double coordinate(BytesRef triangles, int index) {
+        int offset = triangles.offset + index * 8;
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (triangles.bytes[offset + i] & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+}
@@ -0,0 +1,142 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import com.spatial4j.core.context.jts.JtsSpatialContext;
+import com.spatial4j.core.context.jts.JtsSpatialContextFactory;
+import com.spatial4j.core.context.jts.ValidationRule;
+import com.spatial4j.core.io.WKTReader;
+import com.spatial4j.core.io.jts.JtsWKTReader;
+import com.spatial4j.core.shape.Shape;
+import com.spatial4j.core.shape.impl.RectangleImpl;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+
+import java.text.ParseException;
+
+/**
+ * Reads WKT into a JTS {@link Geometry} as written, of which the longitudes
+ * are unwrapped where a line or ring crosses the dateline, e.g. from 170 to
+ * 190 instead of from 170 to -170.
+ * <p>
+ * {@link WktFieldMapper#parseWkt(String)} cuts such shapes at the dateline
+ * instead, into pieces on opposite sides of the map with extra vertices and
+ * edges along the cut. That is what the prefix tree needs, but planar
+ * measures like the centroid or the length don't hold for it.
+ */
+class UnwrappedWktReader extends JtsWKTReader {
+
+    private static final JtsSpatialContextFactory FACTORY = new JtsSpatialContextFactory();
+    private static final JtsSpatialContext CONTEXT;
+
+    static {
+        // Not geo, so shapes are neither cut nor normalized, with room for
+        // longitudes unwrapped past the dateline. The shapes were already
+        // validated by WktFieldMapper#parseWkt.
+        FACTORY.geo = false;
+        FACTORY.worldBounds = new RectangleImpl(-540, 540, -90, 90, null);
+        FACTORY.validationRule = ValidationRule.none;
+        FACTORY.allowMultiOverlap = true;
+        CONTEXT = FACTORY.newSpatialContext();
+    }
+
+    UnwrappedWktReader() {
+        super(CONTEXT, FACTORY);
+    }
+
+    /**
+     * @throws ParseException
+     *             If the string is not valid WKT.
+     */
+    Geometry read(String wktString) throws ParseException {
+        Geometry geometry = WktFieldMapper.toGeometry(parse(wktString));
+        unwrap(geometry);
+        return geometry;
+    }
+
+    /**
+     * Keeps rectangular polygons as polygons, as a rectangle one crossing the
+     * dateline would cover the rest of the world instead.
+     */
+    @Override
+    protected Shape parsePolygonShape(WKTReader.State state) throws ParseException {
+        GeometryFactory factory = ctx.getGeometryFactory();
+        if (state.nextIfEmptyAndSkipZM()) {
+            return ctx.makeShape(factory.createPolygon(factory.createLinearRing(new Coordinate[0]), null));
+        }
+        return ctx.makeShape(polygon(state));
+    }
+
+    /**
+     * {@code ENVELOPE (minX, maxX, maxY, minY)}, of which {@code minX > maxX}
+     * if it crosses the dateline.
+     */
+    @Override
+    protected Shape parseEnvelopeShape(WKTReader.State state) throws ParseException {
+        state.nextExpect('(');
+        double minX = state.nextDouble();
+        state.nextExpect(',');
+        double maxX = state.nextDouble();
+        state.nextExpect(',');
+        double maxY = state.nextDouble();
+        state.nextExpect(',');
+        double minY = state.nextDouble();
+        state.nextExpect(')');
+        if (minX > maxX) {
+            maxX += 360;
+        }
+        return ctx.makeShape(ctx.getGeometryFactory().toGeometry(new Envelope(minX, maxX, minY, maxY)));
+    }
+
+    /**
+     * Shifts the longitudes of each line and ring, so no two consecutive
+     * coordinates are more than 180 degrees apart, and the holes of a polygon
+     * to the side of the dateline its shell is on.
+     */
+    private static void unwrap(Geometry geometry) {
+        if (geometry instanceof Polygon) {
+            Polygon polygon = (Polygon) geometry;
+            LineString shell = polygon.getExteriorRing();
+            unwrap(shell.getCoordinateSequence());
+            shell.geometryChanged();
+            double shellX = shell.getEnvelopeInternal().centre().x;
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                LineString hole = polygon.getInteriorRingN(i);
+                unwrap(hole.getCoordinateSequence());
+                hole.geometryChanged();
+                double shift = 360 * Math.round((shellX - hole.getEnvelopeInternal().centre().x) / 360);
+                if (shift != 0) {
+                    CoordinateSequence coordinates = hole.getCoordinateSequence();
+                    for (int j = 0; j < coordinates.size(); j++) {
+                        coordinates.setOrdinate(j, CoordinateSequence.X, coordinates.getX(j) + shift);
+                    }
+                }
+            }
+        } else if (geometry instanceof LineString) {
+            unwrap(((LineString) geometry).getCoordinateSequence());
+        } else if (geometry instanceof GeometryCollection) {
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                unwrap(geometry.getGeometryN(i));
+            }
+        }
+        geometry.geometryChanged();
+    }
+
+    private static void unwrap(CoordinateSequence coordinates) {
+        double shift = 0;
+        for (int i = 1; i < coordinates.size(); i++) {
+            double previous = coordinates.getX(i - 1) - shift;
+            double x = coordinates.getX(i);
+            if (x - previous > 180) {
+                shift -= 360;
+            } else if (x - previous < -180) {
+                shift += 360;
+            }
+            coordinates.setOrdinate(i, CoordinateSequence.X, x + shift);
+        }
+    }
+}
@@ -4,37 +4,68 @@ import org.elasticsearch.ElasticsearchParseException;
 import org.elasticsearch.Version;
 import org.elasticsearch.common.Explicit;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.geo.GeoPoint;
+import org.elasticsearch.common.geo.ShapeRelation;
 import org.elasticsearch.common.geo.SpatialStrategy;
 import org.elasticsearch.common.geo.builders.ShapeBuilder;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.DistanceUnit;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentParser.Token;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.mapper.DocumentMapper;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.mapper.Mapper;
 import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.MapperService;
 import org.elasticsearch.index.mapper.ParseContext;
+import org.elasticsearch.index.mapper.geo.GeoPointFieldMapper;
 import org.elasticsearch.index.mapper.geo.GeoShapeFieldMapper;
+import org.elasticsearch.index.mapper.internal.FieldNamesFieldMapper;
+import org.elasticsearch.index.mapper.object.ArrayValueMapperParser;
 
 import com.spatial4j.core.context.jts.JtsSpatialContext;
 import com.spatial4j.core.context.jts.JtsSpatialContextFactory;
+import com.spatial4j.core.distance.DistanceUtils;
 import com.spatial4j.core.exception.InvalidShapeException;
 import com.spatial4j.core.io.jts.JtsWKTReader;
 import com.spatial4j.core.shape.Point;
 import com.spatial4j.core.shape.Shape;
+import com.spatial4j.core.shape.ShapeCollection;
 import com.spatial4j.core.shape.jts.JtsGeometry;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.util.LinearComponentExtracter;
 
+import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.spatial.prefix.PrefixTreeStrategy;
+import org.apache.lucene.spatial.prefix.tree.GeohashPrefixTree;
+import org.apache.lucene.spatial.prefix.tree.PackedQuadPrefixTree;
+import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTree;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeBooleanValue;
+import static org.elasticsearch.index.mapper.core.TypeParsers.parseMultiField;
 
 /**
  * FieldMapper for indexing WKT strings as {@link Shape}s.
@@ -42,17 +73,78 @@ import static org.elasticsearch.common.xcontent.support.XContentMapValues.nodeBo
  * Format supported:
  * <p>
  * "field" : "POINT (13.400544 52.530286)"
+ * <p>
+ * or an array of WKT strings, of which the shared cells are indexed once:
+ * <p>
+ * "field" : ["POINT (13.400544 52.530286)", "POINT (13.38 52.51)"]
  * 
  * @author Pano Maria
  * @author Joost Farla
  *
  */
-public class WktFieldMapper extends GeoShapeFieldMapper {
+public class WktFieldMapper extends GeoShapeFieldMapper implements ArrayValueMapperParser {
 
     public static final String CONTENT_TYPE = "wkt";
 
     public static final JtsSpatialContext SPATIAL_CONTEXT = JtsSpatialContext.GEO;
 
+    /**
+     * The WKT shape types supported by the {@link JtsWKTReader}.
+     */
+    public static final Set<String> SHAPE_TYPES = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList("POINT",
+            "MULTIPOINT", "LINESTRING", "MULTILINESTRING", "POLYGON", "MULTIPOLYGON", "GEOMETRYCOLLECTION", "ENVELOPE", "BUFFER")));
+
+    public static class Names extends GeoShapeFieldMapper.Names {
+        public static final String ALLOWED_TYPES = "allowed_types";
+        public static final String DERIVE = "derive";
+        public static final String COMPACT_CELLS = "compact_cells";
+        public static final String MAX_CELLS_PER_SHAPE = "max_cells_per_shape";
+        public static final String TESSELLATE = "tessellate";
+        public static final String INDEX_CELLS = "index_cells";
+    }
+
+    /**
+     * Values that can be derived from the parsed shape into a sub-field, by
+     * mapping the sub-field name to one of these in {@code derive}.
+     */
+    public enum Derived {
+        /** The centroid, for a {@code geo_point} sub-field. */
+        CENTROID,
+        /** The area in square meters, for a numeric sub-field. */
+        AREA,
+        /** The length of all lines and polygon rings in meters, for a numeric sub-field. */
+        LENGTH,
+        /** The number of vertices, for a numeric sub-field. */
+        VERTEX_COUNT;
+
+        private static final Set<String> NUMERIC_TYPES = new HashSet<>(Arrays.asList("double", "float", "long", "int",
+                "short", "byte"));
+
+        /**
+         * Whether a sub-field of the type can hold this value.
+         */
+        public boolean accepts(String typeName) {
+            if (this == CENTROID) {
+                return GeoPointFieldMapper.CONTENT_TYPE.equals(typeName);
+            }
+            return NUMERIC_TYPES.contains(typeName);
+        }
+
+        public static Derived fromString(String name) {
+            for (Derived derived : values()) {
+                if (derived.toString().equals(name)) {
+                    return derived;
+                }
+            }
+            throw new IllegalArgumentException("unknown derived value [" + name + "], expected one of " + Arrays.toString(values()));
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
     /**
      * A copy of the {@link GeoShapeFieldMapper.Builder}. But, instead of
      * building a {@link GeoShapeFieldMapper}, this builds a
@@ -63,6 +155,14 @@ public class WktFieldMapper extends GeoShapeFieldMapper {
      */
     public static class Builder extends FieldMapper.Builder<Builder, WktFieldMapper> {
         private Boolean coerce;
+        private Set<String> allowedTypes;
+        private Map<String, Derived> derive;
+        private boolean compactCells = false;
+        private int maxCellsPerShape = -1;
+        private boolean tessellate = false;
+        private boolean indexCells = false;
+        private MapperService mapperService;
+        private String type;
 
         public Builder(String name) {
             super(name, Defaults.FIELD_TYPE, Defaults.FIELD_TYPE);
@@ -77,6 +177,70 @@ public class WktFieldMapper extends GeoShapeFieldMapper {
             return builder;
         }
 
+        /**
+         * Restricts the field to the given WKT shape types, e.g.
+         * {@code POLYGON}. All types are allowed if not set.
+         */
+        public Builder allowedTypes(Set<String> allowedTypes) {
+            this.allowedTypes = allowedTypes;
+            return builder;
+        }
+
+        /**
+         * Derives a value from the parsed shape into each given sub-field,
+         * instead of passing it the WKT string.
+         */
+        public Builder derive(Map<String, Derived> derive) {
+            this.derive = derive;
+            return builder;
+        }
+
+        /**
+         * Replaces complete sets of sibling leaf cells by their parent cell.
+         */
+        public Builder compactCells(boolean compactCells) {
+            this.compactCells = compactCells;
+            return builder;
+        }
+
+        /**
+         * Lowers the precision of a shape's boundary until it is indexed in
+         * at most this many cells.
+         */
+        public Builder maxCellsPerShape(int maxCellsPerShape) {
+            this.maxCellsPerShape = maxCellsPerShape;
+            return builder;
+        }
+
+        /**
+         * Indexes shapes as their bounding box and triangles, to be queried
+         * with the {@code wkt_shape} query, instead of prefix tree cells
+         * unless {@link #indexCells(boolean)} is set.
+         */
+        public Builder tessellate(boolean tessellate) {
+            this.tessellate = tessellate;
+            return builder;
+        }
+
+        /**
+         * Indexes the prefix tree cells of tessellated shapes as well, for the
+         * {@code geo_shape} query.
+         */
+        public Builder indexCells(boolean indexCells) {
+            this.indexCells = indexCells;
+            return builder;
+        }
+
+        /**
+         * The field of the same name in the other types of the index must be
+         * tessellated the same way, as queries don't tell the types apart.
+         */
+        public Builder otherTypes(MapperService mapperService, String type) {
+            this.mapperService = mapperService;
+            this.type = type;
+            return builder;
+        }
+
         protected Explicit<Boolean> coerce(BuilderContext context) {
             if (coerce != null) {
                 return new Explicit<>(coerce, true);
@@ -101,8 +265,52 @@ public class WktFieldMapper extends GeoShapeFieldMapper {
             }
             setupFieldType(context);
 
-            return new WktFieldMapper(name, fieldType, coerce(context), context.indexSettings(), multiFieldsBuilder.build(this, context),
-                    copyTo);
+            if ((compactCells || maxCellsPerShape > 0)
+                    && geoShapeFieldType.strategyName().equals(SpatialStrategy.TERM.getStrategyName())) {
+                throw new MapperParsingException("[" + name + "] " + Names.COMPACT_CELLS + " and " + Names.MAX_CELLS_PER_SHAPE
+                        + " are not supported by the " + SpatialStrategy.TERM.getStrategyName() + " strategy");
+            }
+            if (indexCells && !tessellate) {
+                throw new MapperParsingException("[" + name + "] " + Names.INDEX_CELLS + " requires " + Names.TESSELLATE);
+            }
+            if (tessellate && !indexCells && (compactCells || maxCellsPerShape > 0)) {
+                throw new MapperParsingException("[" + name + "] " + Names.COMPACT_CELLS + " and " + Names.MAX_CELLS_PER_SHAPE
+                        + " cannot be combined with " + Names.TESSELLATE + " without " + Names.INDEX_CELLS);
+            }
+            if (mapperService != null) {
+                String fullName = context.path().fullPathAsText(name);
+                for (DocumentMapper documentMapper : mapperService.docMappers(false)) {
+                    FieldMapper other = documentMapper.mappers().getMapper(fullName);
+                    if (!documentMapper.type().equals(type) && other instanceof WktFieldMapper
+                            && (((WktFieldMapper) other).tessellate != tessellate || ((WktFieldMapper) other).indexCells != indexCells)) {
+                        throw new MapperParsingException("[" + name + "] " + Names.TESSELLATE + " and " + Names.INDEX_CELLS
+                                + " must be the same as in type [" + documentMapper.type() + "]");
+                    }
+                }
+            }
+
+            MultiFields multiFields = multiFieldsBuilder.build(this, context);
+            if (derive != null) {
+                Map<String, String> subFields = new HashMap<>();
+                for (Iterator<Mapper> iterator = multiFields.iterator(); iterator.hasNext();) {
+                    FieldMapper subField = (FieldMapper) iterator.next();
+                    subFields.put(subField.simpleName(), subField.fieldType().typeName());
+                }
+                for (Map.Entry<String, Derived> entry : derive.entrySet()) {
+                    String typeName = subFields.get(entry.getKey());
+                    if (typeName == null) {
+                        throw new MapperParsingException("[" + name + "] derives into [" + entry.getKey()
+                                + "], which is not one of its fields");
+                    }
+                    if (!entry.getValue().accepts(typeName)) {
+                        throw new MapperParsingException("[" + name + "] cannot derive " + entry.getValue() + " into ["
+                                + entry.getKey() + "] of type [" + typeName + "]");
+                    }
+                }
+            }
+
+            return new WktFieldMapper(name, fieldType, coerce(context), allowedTypes, derive, compactCells, maxCellsPerShape,
+                    tessellate, indexCells, context.indexSettings(), multiFields, copyTo);
         }
     }
 
@@ -120,6 +328,7 @@ public class WktFieldMapper extends GeoShapeFieldMapper {
         public Mapper.Builder<?, ?> parse(String name, Map<String, Object> node, ParserContext parserContext)
                 throws MapperParsingException {
             Builder builder = new Builder(name);
+            builder.otherTypes(parserContext.mapperService(), parserContext.type());
             for (Iterator<Map.Entry<String, Object>> iterator = node.entrySet().iterator(); iterator.hasNext();) {
                 Map.Entry<String, Object> entry = iterator.next();
                 String fieldName = Strings.toUnderscoreCase(entry.getKey());
@@ -150,15 +359,154 @@ public class WktFieldMapper extends GeoShapeFieldMapper {
                         && builder.fieldType().strategyName().equals(SpatialStrategy.TERM.getStrategyName()) == false) {
                     builder.fieldType().setPointsOnly(XContentMapValues.nodeBooleanValue(fieldNode));
                     iterator.remove();
+                } else if (Names.ALLOWED_TYPES.equals(fieldName)) {
+                    builder.allowedTypes(parseAllowedTypes(name, fieldNode));
+                    iterator.remove();
+                } else if (Names.COMPACT_CELLS.equals(fieldName)) {
+                    builder.compactCells(nodeBooleanValue(fieldNode));
+                    iterator.remove();
+                } else if (Names.MAX_CELLS_PER_SHAPE.equals(fieldName)) {
+                    builder.maxCellsPerShape(XContentMapValues.nodeIntegerValue(fieldNode));
+                    iterator.remove();
+                } else if (Names.TESSELLATE.equals(fieldName)) {
+                    builder.tessellate(nodeBooleanValue(fieldNode));
+                    iterator.remove();
+                } else if (Names.INDEX_CELLS.equals(fieldName)) {
+                    builder.indexCells(nodeBooleanValue(fieldNode));
+                    iterator.remove();
+                } else if (Names.DERIVE.equals(fieldName)) {
+                    builder.derive(parseDerive(name, fieldNode));
+                    iterator.remove();
+                } else if (parseMultiField(builder, name, parserContext, fieldName, fieldNode)) {
+                    iterator.remove();
                 }
             }
             return builder;
         }
+
+        private static Set<String> parseAllowedTypes(String name, Object fieldNode) {
+            Set<String> allowedTypes = new LinkedHashSet<>();
+            for (String type : XContentMapValues.nodeStringArrayValue(fieldNode)) {
+                String shapeType = type.trim().toUpperCase(Locale.ROOT);
+                if (!SHAPE_TYPES.contains(shapeType)) {
+                    throw new MapperParsingException("[" + name + "] has unknown " + Names.ALLOWED_TYPES + " [" + type
+                            + "], expected one of " + SHAPE_TYPES);
+                }
+                allowedTypes.add(shapeType);
+            }
+            if (allowedTypes.isEmpty()) {
+                throw new MapperParsingException("[" + name + "] must allow at least one shape type in " + Names.ALLOWED_TYPES);
+            }
+            return allowedTypes;
+        }
+
+        private static Map<String, Derived> parseDerive(String name, Object fieldNode) {
+            if (!(fieldNode instanceof Map)) {
+                throw new MapperParsingException("[" + name + "] " + Names.DERIVE + " must map sub-fields to derived values");
+            }
+            Map<String, Derived> derive = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) fieldNode).entrySet()) {
+                try {
+                    derive.put(entry.getKey().toString(), Derived.fromString(entry.getValue().toString()));
+                } catch (IllegalArgumentException e) {
+                    throw new MapperParsingException("[" + name + "] " + e.getMessage());
+                }
+            }
+            return derive;
+        }
     }
 
-    protected WktFieldMapper(String simpleName, MappedFieldType fieldType, Explicit<Boolean> coerce, Settings indexSettings,
-            MultiFields multiFields, CopyTo copyTo) {
+    private Set<String> allowedTypes;
+    private Map<String, Derived> derive;
+    private boolean compactCells;
+    private int maxCellsPerShape;
+    private boolean tessellate;
+    private boolean indexCells;
+
+    /**
+     * Indexes the shapes with {@code compact_cells} or
+     * {@code max_cells_per_shape}, built on first use.
+     */
+    private volatile CellBudgetPrefixTreeStrategy cellBudgetStrategy;
+
+    protected WktFieldMapper(String simpleName, MappedFieldType fieldType, Explicit<Boolean> coerce, Set<String> allowedTypes,
+            Map<String, Derived> derive, boolean compactCells, int maxCellsPerShape, boolean tessellate, boolean indexCells,
+            Settings indexSettings, MultiFields multiFields, CopyTo copyTo) {
         super(simpleName, fieldType, coerce, indexSettings, multiFields, copyTo);
+        this.allowedTypes = allowedTypes;
+        this.derive = derive;
+        this.compactCells = compactCells;
+        this.maxCellsPerShape = maxCellsPerShape;
+        this.tessellate = tessellate;
+        this.indexCells = indexCells;
+    }
+
+    /**
+     * The WKT shape types this field accepts, or {@code null} if all types
+     * are accepted.
+     */
+    public Set<String> allowedTypes() {
+        return allowedTypes;
+    }
+
+    /**
+     * Whether leafy branches of prefix tree cells are pruned.
+     */
+    public boolean compactCells() {
+        return compactCells;
+    }
+
+    /**
+     * The maximum number of prefix tree cells per shape, unlimited if not
+     * positive.
+     */
+    public int maxCellsPerShape() {
+        return maxCellsPerShape;
+    }
+
+    /**
+     * Whether shapes are indexed as their bounding box and triangles, instead
+     * of prefix tree cells unless {@link #indexCells()}.
+     */
+    public boolean tessellate() {
+        return tessellate;
+    }
+
+    /**
+     * Whether the prefix tree cells of tessellated shapes are indexed as well.
+     */
+    public boolean indexCells() {
+        return indexCells;
+    }
+
+    /**
+     * Matches the documents of which the shapes relate to the query shape.
+     * Only for tessellated fields, which the {@code geo_shape} query only
+     * supports with {@code index_cells}.
+     */
+    public Query tessellationQuery(Shape shape, ShapeRelation relation) {
+        if (!tessellate) {
+            throw new IllegalStateException("[" + fieldType().names().fullName() + "] is not tessellated");
+        }
+        return new TessellationQuery(fieldType().names().indexName(), toGeometry(shape), relation);
+    }
+
+    /**
+     * Parses a WKT string into a shape.
+     *
+     * @throws ParseException
+     *             If the string is not valid WKT.
+     */
+    public static Shape parseWkt(String wktString) throws ParseException {
+        // Pano: This is a hack. The factory is required in the WKTReader
+        // constructor, but isn't used.
+        JtsSpatialContextFactory factory = new JtsSpatialContextFactory();
+
+        // Pano: Use JtsWKTReader for now, to support Polygon and MultiPolygon
+        // TODO: Revisit this when ES upgrades to Spatial4J 0.6.
+        JtsWKTReader wktReader = new JtsWKTReader(SPATIAL_CONTEXT, factory);
+        //com.spatial4j.core.io.WKTReader wktReader = new com.spatial4j.core.io.WKTReader(SPATIAL_CONTEXT, factory);
+        return wktReader.parse(wktString);
     }
 
     @Override
@@ -170,6 +518,13 @@ public class WktFieldMapper extends GeoShapeFieldMapper {
      * Parses the {@link ParseContext} to retrieve the WKT string and
      * subsequently attempts to parse that to a {@link Shape}. This shape is
      * then processed in the same way as is done by {@link GeoShapeFieldMapper}.
+     * <p>
+     * The prefix tree cells of an array of WKT strings are merged into one
+     * {@link MergedCellsField}, so the cells shared by several values are
+     * only indexed once.
+     * 
+     * Sub-fields listed in {@code derive} receive a value derived from the
+     * parsed shapes, all other sub-fields receive the WKT strings.
      * 
      * It always returns {@code null} because the mappings are not modified.
      */
@@ -177,44 +532,330 @@ public class WktFieldMapper extends GeoShapeFieldMapper {
     public Mapper parse(ParseContext context) throws IOException {
         try {
             XContentParser parser = context.parser();
+            List<Shape> shapes = new ArrayList<>();
+            List<String> wktStrings = new ArrayList<>();
             if (parser.currentToken() == XContentParser.Token.VALUE_NULL) {
                 return null;
+            } else if (parser.currentToken() == XContentParser.Token.START_ARRAY) {
+                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    if (parser.currentToken() != XContentParser.Token.VALUE_NULL) {
+                        addShape(parser, shapes, wktStrings);
+                    }
+                }
             } else if (parser.currentToken() != XContentParser.Token.VALUE_STRING
                     && parser.nextToken() != XContentParser.Token.END_OBJECT) {
                 throw new ElasticsearchParseException("Must be an object consisting of type and WKT string");
+            } else {
+                addShape(parser, shapes, wktStrings);
             }
 
-            // parse the document and populate the spatial4j Shape
-            Shape shape = parseWktToShape(parser);
-
-            // If shape is still null, something has gone wrong
-            if (shape == null) {
+            // If no shape could be parsed, something has gone wrong
+            if (shapes.isEmpty()) {
                 return null;
             }
 
-            // Standard GeoShapeFieldMapper behavior
-            if (fieldType().pointsOnly() && !(shape instanceof Point)) {
-                throw new MapperParsingException("[{" + fieldType().names().fullName() + "}] is configured for points only but a "
-                        + ((shape instanceof JtsGeometry) ? ((JtsGeometry) shape).getGeom().getGeometryType() : shape.getClass())
-                        + " was found");
+            if (!tessellate || indexCells) {
+                addCells(context, shapes);
+            } else {
+                addFieldName(context);
+            }
+            if (tessellate) {
+                addTessellatedFields(context, shapes);
             }
 
-            Field[] fields = fieldType().defaultStrategy().createIndexableFields(shape);
-            if (fields == null || fields.length == 0) {
+            parseSubFields(context, shapes, wktStrings);
+
+        } catch (Exception e) {
+            throw new MapperParsingException("failed to parse [" + fieldType().names().fullName() + "]", e);
+        }
+        return null;
+    }
+
+    /**
+     * Decomposes the {@link Shape} into prefix tree cells, at the detail level
+     * that fits the shape. Points in a geohash or quadtree skip the cell
+     * decomposition and are encoded directly by a {@link GeohashPointField}
+     * or {@link QuadPointField}.
+     */
+    private Field[] createIndexableFields(Shape shape) {
+        PrefixTreeStrategy strategy = indexStrategy();
+        if (shape instanceof Point) {
+            Point point = (Point) shape;
+            SpatialPrefixTree grid = strategy.getGrid();
+            if (grid instanceof GeohashPrefixTree) {
+                return new Field[] {
+                        new GeohashPointField(strategy.getFieldName(), point.getX(), point.getY(), grid.getMaxLevels()) };
+            } else if (grid instanceof PackedQuadPrefixTree) {
+                return new Field[] {
+                        new QuadPointField(strategy.getFieldName(), point.getX(), point.getY(), grid.getMaxLevels()) };
+            }
+        }
+        Field[] fields = strategy.createIndexableFields(shape);
+        return fields == null ? new Field[0] : fields;
+    }
+
+    private void addFields(ParseContext context, Field... fields) {
+        for (Field field : fields) {
+            if (!customBoost()) {
+                field.setBoost(fieldType().boost());
+            }
+            context.doc().add(field);
+        }
+    }
+
+    /**
+     * Indexes the bounding box of the shapes as numeric fields and their
+     * triangles as doc values, see {@link TessellationQuery}.
+     */
+    private void addTessellatedFields(ParseContext context, List<Shape> shapes) {
+        Geometry geometry = toGeometry(shapes);
+        String name = fieldType().names().indexName();
+        Envelope envelope = geometry.getEnvelopeInternal();
+        context.doc().add(new DoubleField(name + TessellationQuery.MIN_X, envelope.getMinX(), Field.Store.NO));
+        context.doc().add(new DoubleField(name + TessellationQuery.MAX_X, envelope.getMaxX(), Field.Store.NO));
+        context.doc().add(new DoubleField(name + TessellationQuery.MIN_Y, envelope.getMinY(), Field.Store.NO));
+        context.doc().add(new DoubleField(name + TessellationQuery.MAX_Y, envelope.getMaxY(), Field.Store.NO));
+
+        // Values of the field in several objects end up in the same document
+        String trianglesName = name + TrianglesField.SUFFIX;
+        TrianglesField triangles = (TrianglesField) context.doc().getByKey(trianglesName);
+        if (triangles == null) {
+            triangles = new TrianglesField(trianglesName);
+            context.doc().addWithKey(trianglesName, triangles);
+        }
+        triangles.add(Tessellator.tessellate(geometry));
+    }
+
+    /**
+     * Indexes the prefix tree cells of the shapes.
+     */
+    private void addCells(ParseContext context, List<Shape> shapes) throws IOException {
+        if (fieldType().pointsOnly() || shapes.size() == 1) {
+            // A point only yields a single cell per level anyway
+            for (Shape shape : shapes) {
+                addFields(context, createIndexableFields(shape));
+            }
+        } else {
+            MergedCellsField cells = new MergedCellsField(fieldType().names().indexName());
+            for (Shape shape : shapes) {
+                for (Field field : createIndexableFields(shape)) {
+                    cells.add(field);
+                }
+            }
+            addFields(context, cells);
+        }
+    }
+
+    /**
+     * Adds the name of the field to {@code _field_names} for the
+     * {@code exists} and {@code missing} queries, as the bounding box and
+     * triangles are indexed under other names.
+     */
+    private void addFieldName(ParseContext context) {
+        FieldNamesFieldMapper fieldNamesMapper = context.docMapper().metadataMapper(FieldNamesFieldMapper.class);
+        if (fieldNamesMapper != null && fieldNamesMapper.fieldType().isEnabled()) {
+            MappedFieldType fieldNamesType = fieldNamesMapper.fieldType();
+            context.doc().add(new Field(fieldNamesType.names().indexName(), fieldType().names().indexName(), fieldNamesType));
+        }
+    }
+
+    /**
+     * The strategy that decomposes shapes into cells for indexing. Cells
+     * within a shape are never refined further than needed, but without
+     * {@code compact_cells} and {@code max_cells_per_shape} this is just the
+     * default strategy.
+     */
+    private PrefixTreeStrategy indexStrategy() {
+        PrefixTreeStrategy strategy = fieldType().defaultStrategy();
+        if (!compactCells && maxCellsPerShape <= 0) {
+            return strategy;
+        }
+        CellBudgetPrefixTreeStrategy cellBudgetStrategy = this.cellBudgetStrategy;
+        // The field type, and so its default strategy, is replaced when the
+        // mapping is updated
+        if (cellBudgetStrategy == null || cellBudgetStrategy.getGrid() != strategy.getGrid()
+                || cellBudgetStrategy.getDistErrPct() != strategy.getDistErrPct()
+                || cellBudgetStrategy.isPointsOnly() != strategy.isPointsOnly()) {
+            cellBudgetStrategy = new CellBudgetPrefixTreeStrategy(strategy.getGrid(), strategy.getFieldName(),
+                    maxCellsPerShape);
+            cellBudgetStrategy.setDistErrPct(strategy.getDistErrPct());
+            cellBudgetStrategy.setPointsOnly(strategy.isPointsOnly());
+            cellBudgetStrategy.setPruneLeafyBranches(compactCells);
+            this.cellBudgetStrategy = cellBudgetStrategy;
+        }
+        return cellBudgetStrategy;
+    }
+
+    /**
+     * Parses the WKT value the {@link XContentParser} is positioned on and
+     * adds the resulting {@link Shape} to {@code shapes}.
+     * 
+     * @param parser
+     *            A parser who's current state is expected to be on the WKT
+     *            token.
+     * @param shapes
+     *            The shapes parsed so far for the current document.
+     * @param wktStrings
+     *            The WKT strings of the shapes.
+     * @throws IOException
+     */
+    private void addShape(XContentParser parser, List<Shape> shapes, List<String> wktStrings) throws IOException {
+        // parse the document and populate the spatial4j Shape
+        Shape shape = parseWktToShape(parser);
+
+        // If shape is still null, something has gone wrong
+        if (shape == null) {
+            return;
+        }
+
+        // Standard GeoShapeFieldMapper behavior
+        if (fieldType().pointsOnly() && !(shape instanceof Point)) {
+            throw new MapperParsingException("[{" + fieldType().names().fullName() + "}] is configured for points only but a "
+                    + ((shape instanceof JtsGeometry) ? ((JtsGeometry) shape).getGeom().getGeometryType() : shape.getClass())
+                    + " was found");
+        }
+
+        shapes.add(shape);
+        if (iterator().hasNext()) {
+            wktStrings.add(parser.text());
+        }
+    }
+
+    /**
+     * Passes each sub-field either its derived value, or the WKT strings.
+     * Derived values are only computed for the sub-fields that need them.
+     */
+    private void parseSubFields(ParseContext context, List<Shape> shapes, List<String> wktStrings) throws IOException,
+            ParseException {
+        if (!iterator().hasNext()) {
+            return;
+        }
+        context = context.createMultiFieldContext();
+        context.path().add(simpleName());
+        Geometry geometry = null;
+        for (Iterator<Mapper> iterator = iterator(); iterator.hasNext();) {
+            FieldMapper subField = (FieldMapper) iterator.next();
+            Derived derived = derive == null ? null : derive.get(subField.simpleName());
+            if (derived == null) {
+                for (String wktString : wktStrings) {
+                    subField.parse(context.createExternalValueContext(wktString));
+                }
+                continue;
+            }
+            if (geometry == null && derived != Derived.AREA) {
+                geometry = toUnwrappedGeometry(shapes, wktStrings);
+            }
+            Object value = derive(derived, shapes, geometry);
+            if (value != null) {
+                subField.parse(context.createExternalValueContext(value));
+            }
+        }
+        context.path().remove();
+    }
+
+    /**
+     * @param geometry
+     *            The shapes as written, see {@link UnwrappedWktReader}.
+     */
+    private static Object derive(Derived derived, List<Shape> shapes, Geometry geometry) {
+        switch (derived) {
+        case CENTROID:
+            if (geometry.isEmpty()) {
                 return null;
             }
+            com.vividsolutions.jts.geom.Point centroid = geometry.getCentroid();
+            return new GeoPoint(centroid.getY(), DistanceUtils.normLonDEG(centroid.getX()));
+        case AREA:
+            double area = 0;
+            for (Shape shape : shapes) {
+                area += shape.getArea(SPATIAL_CONTEXT);
+            }
+            return area * DistanceUtils.DEG_TO_KM * DistanceUtils.DEG_TO_KM * 1000 * 1000;
+        case LENGTH:
+            double length = 0;
+            for (Object line : LinearComponentExtracter.getLines(geometry)) {
+                CoordinateSequence coordinates = ((LineString) line).getCoordinateSequence();
+                for (int i = 1; i < coordinates.size(); i++) {
+                    length += DistanceUtils.distHaversineRAD(Math.toRadians(coordinates.getY(i - 1)),
+                            Math.toRadians(coordinates.getX(i - 1)), Math.toRadians(coordinates.getY(i)),
+                            Math.toRadians(coordinates.getX(i)));
+                }
+            }
+            return length * DistanceUtils.EARTH_MEAN_RADIUS_KM * 1000;
+        case VERTEX_COUNT:
+            return geometry.getNumPoints();
+        default:
+            throw new IllegalArgumentException("unknown derived value [" + derived + "]");
+        }
+    }
+
+    private static Geometry toGeometry(List<Shape> shapes) {
+        if (shapes.size() == 1) {
+            return toGeometry(shapes.get(0));
+        }
+        Geometry[] geometries = new Geometry[shapes.size()];
+        for (int i = 0; i < geometries.length; i++) {
+            geometries[i] = toGeometry(shapes.get(i));
+        }
+        return SPATIAL_CONTEXT.getGeometryFactory().createGeometryCollection(geometries);
+    }
+
+    /**
+     * Converts a shape into a JTS geometry. Unlike
+     * {@link JtsSpatialContext#getGeometryFrom(Shape)} this supports the
+     * {@link ShapeCollection} that multi points, multi polygons and geometry
+     * collections are parsed into.
+     */
+    static Geometry toGeometry(Shape shape) {
+        if (shape instanceof ShapeCollection) {
+            List<Geometry> geometries = new ArrayList<>();
+            for (Shape member : ((ShapeCollection<?>) shape).getShapes()) {
+                geometries.add(toGeometry(member));
+            }
+            return SPATIAL_CONTEXT.getGeometryFactory().buildGeometry(geometries);
+        }
+        return SPATIAL_CONTEXT.getGeometryFrom(shape);
+    }
 
-            for (Field field : fields) {
-                if (!customBoost()) {
-                    field.setBoost(fieldType().boost());
+    /**
+     * Converts the shapes into a JTS geometry as written. Only the WKT strings
+     * of the shapes that cross the dateline are read again, as those shapes
+     * are cut at the dateline.
+     */
+    private static Geometry toUnwrappedGeometry(List<Shape> shapes, List<String> wktStrings) throws ParseException {
+        UnwrappedWktReader reader = null;
+        Geometry[] geometries = new Geometry[shapes.size()];
+        for (int i = 0; i < geometries.length; i++) {
+            Shape shape = shapes.get(i);
+            if (crossesDateLine(shape)) {
+                if (reader == null) {
+                    reader = new UnwrappedWktReader();
                 }
-                context.doc().add(field);
+                geometries[i] = reader.read(wktStrings.get(i));
+            } else {
+                geometries[i] = toGeometry(shape);
             }
+        }
+        if (geometries.length == 1) {
+            return geometries[0];
+        }
+        return SPATIAL_CONTEXT.getGeometryFactory().createGeometryCollection(geometries);
+    }
 
-        } catch (Exception e) {
-            throw new MapperParsingException("failed to parse [" + fieldType().names().fullName() + "]", e);
+    /**
+     * The bounding box of a collection may span the whole world instead, so
+     * its members are checked one by one.
+     */
+    private static boolean crossesDateLine(Shape shape) {
+        if (shape instanceof ShapeCollection) {
+            for (Shape member : ((ShapeCollection<?>) shape).getShapes()) {
+                if (crossesDateLine(member)) {
+                    return true;
+                }
+            }
+            return false;
         }
-        return null;
+        return shape.getBoundingBox().getCrossesDateLine();
     }
 
     /**
@@ -237,17 +878,10 @@ public class WktFieldMapper extends GeoShapeFieldMapper {
             throw new IllegalArgumentException("location must be a WKT string)");
         } else {
             String wktString = parser.textOrNull();
+            checkAllowedType(wktString);
 
-            // Pano: This is a hack. The factory is required in the WKTReader
-            // constructor, but isn't used.
-            JtsSpatialContextFactory factory = new JtsSpatialContextFactory();
-            
-            // Pano: Use JtsWKTReader for now, to support Polygon and MultiPolygon
-            // TODO: Revisit this when ES upgrades to Spatial4J 0.6.
-            JtsWKTReader wktReader = new JtsWKTReader(SPATIAL_CONTEXT, factory);
-            //com.spatial4j.core.io.WKTReader wktReader = new com.spatial4j.core.io.WKTReader(SPATIAL_CONTEXT, factory);
             try {
-                shape = wktReader.parse(wktString);
+                shape = parseWkt(wktString);
             } catch (InvalidShapeException e) {
                 // TODO: determine proper way
                 e.printStackTrace();
@@ -259,6 +893,78 @@ public class WktFieldMapper extends GeoShapeFieldMapper {
         return shape;
     }
 
+    /**
+     * Checks the WKT tag against the {@code allowed_types} of this field, so
+     * a wrong type is rejected before any coordinates are parsed.
+     */
+    private void checkAllowedType(String wktString) {
+        if (allowedTypes == null || wktString == null) {
+            return;
+        }
+        int start = 0;
+        while (start < wktString.length() && Character.isWhitespace(wktString.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        while (end < wktString.length() && Character.isLetter(wktString.charAt(end))) {
+            end++;
+        }
+        for (String allowedType : allowedTypes) {
+            if (allowedType.length() == end - start && wktString.regionMatches(true, start, allowedType, 0, end - start)) {
+                return;
+            }
+        }
+        throw new MapperParsingException("[{" + fieldType().names().fullName() + "}] only allows " + allowedTypes + " but a "
+                + wktString.substring(start, end).toUpperCase(Locale.ROOT) + " was found");
+    }
+
+    @Override
+    protected void doMerge(Mapper mergeWith, boolean updateAllTypes) {
+        super.doMerge(mergeWith, updateAllTypes);
+        this.allowedTypes = ((WktFieldMapper) mergeWith).allowedTypes;
+        this.derive = ((WktFieldMapper) mergeWith).derive;
+        this.compactCells = ((WktFieldMapper) mergeWith).compactCells;
+        this.maxCellsPerShape = ((WktFieldMapper) mergeWith).maxCellsPerShape;
+        this.cellBudgetStrategy = null;
+        if (tessellate != ((WktFieldMapper) mergeWith).tessellate) {
+            throw new IllegalArgumentException("mapper [" + fieldType().names().fullName() + "] has different ["
+                    + Names.TESSELLATE + "]");
+        }
+        if (indexCells != ((WktFieldMapper) mergeWith).indexCells) {
+            throw new IllegalArgumentException("mapper [" + fieldType().names().fullName() + "] has different ["
+                    + Names.INDEX_CELLS + "]");
+        }
+    }
+
+    @Override
+    protected void doXContentBody(XContentBuilder builder, boolean includeDefaults, Params params) throws IOException {
+        super.doXContentBody(builder, includeDefaults, params);
+        if (allowedTypes != null) {
+            builder.field(Names.ALLOWED_TYPES, allowedTypes);
+        }
+        if (includeDefaults || compactCells) {
+            builder.field(Names.COMPACT_CELLS, compactCells);
+        }
+        if (includeDefaults || maxCellsPerShape > 0) {
+            builder.field(Names.MAX_CELLS_PER_SHAPE, maxCellsPerShape);
+        }
+        if (includeDefaults || tessellate) {
+            builder.field(Names.TESSELLATE, tessellate);
+        }
+        if (includeDefaults || indexCells) {
+            builder.field(Names.INDEX_CELLS, indexCells);
+        }
+        if (derive != null) {
+            builder.startObject(Names.DERIVE);
+            for (Map.Entry<String, Derived> entry : derive.entrySet()) {
+                builder.field(entry.getKey(), entry.getValue().toString());
+            }
+            builder.endObject();
+        }
+        // GeoShapeFieldMapper doesn't support sub-fields, so doesn't write them
+        multiFields.toXContent(builder, params);
+    }
+
     @Override
     protected void parseCreateField(ParseContext context, List<Field> fields) throws IOException {
     }
@@ -0,0 +1,74 @@
+package org.elasticsearch.index.query.wkt;
+
+import org.elasticsearch.common.geo.ShapeRelation;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.BoostableQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.io.IOException;
+
+/**
+ * Builds a {@code wkt_shape} query, see {@link WktShapeQueryParser}.
+ */
+public class WktShapeQueryBuilder extends QueryBuilder implements BoostableQueryBuilder<WktShapeQueryBuilder> {
+
+    private final String name;
+    private final String shape;
+
+    private ShapeRelation relation = null;
+    private float boost = -1;
+    private String queryName;
+
+    /**
+     * @param name
+     *            The name of the {@code wkt} field.
+     * @param shape
+     *            The query shape as a WKT string.
+     */
+    public WktShapeQueryBuilder(String name, String shape) {
+        this.name = name;
+        this.shape = shape;
+    }
+
+    /**
+     * The relation of the indexed shapes to the query shape, defaults to
+     * {@link ShapeRelation#INTERSECTS}.
+     */
+    public WktShapeQueryBuilder relation(ShapeRelation relation) {
+        this.relation = relation;
+        return this;
+    }
+
+    @Override
+    public WktShapeQueryBuilder boost(float boost) {
+        this.boost = boost;
+        return this;
+    }
+
+    /**
+     * Sets the query name for the query that can be used when searching for
+     * matched_filters per hit.
+     */
+    public WktShapeQueryBuilder queryName(String queryName) {
+        this.queryName = queryName;
+        return this;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(WktShapeQueryParser.NAME);
+        builder.startObject(name);
+        builder.field("shape", shape);
+        if (relation != null) {
+            builder.field("relation", relation.getRelationName());
+        }
+        builder.endObject();
+        if (boost != -1) {
+            builder.field("boost", boost);
+        }
+        if (queryName != null) {
+            builder.field("_name", queryName);
+        }
+        builder.endObject();
+    }
+}
@@ -0,0 +1,167 @@
+package org.elasticsearch.index.query.wkt;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.spatial.prefix.PrefixTreeStrategy;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.elasticsearch.common.geo.ShapeRelation;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.geo.wkt.WktFieldMapper;
+import org.elasticsearch.index.query.ExistsQueryParser;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryParser;
+import org.elasticsearch.index.query.QueryParsingException;
+
+import com.spatial4j.core.shape.Shape;
+
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * Parses the {@code wkt_shape} query, which matches the documents of which the
+ * shape in a {@code wkt} field relates to a WKT query shape:
+ * <p>
+ * "wkt_shape" : { "location" : { "shape" : "POLYGON ((...))", "relation" : "within" } }
+ * <p>
+ * The relation is one of {@code intersects} (the default), {@code disjoint},
+ * {@code within} or {@code contains}. This is the only query that supports
+ * tessellated fields, on other fields it is the same as the {@code geo_shape}
+ * query.
+ */
+public class WktShapeQueryParser implements QueryParser {
+
+    public static final String NAME = "wkt_shape";
+
+    @Inject
+    public WktShapeQueryParser() {
+    }
+
+    @Override
+    public String[] names() {
+        return new String[] { NAME };
+    }
+
+    @Override
+    public Query parse(QueryParseContext parseContext) throws IOException, QueryParsingException {
+        XContentParser parser = parseContext.parser();
+
+        String fieldName = null;
+        String wkt = null;
+        ShapeRelation relation = ShapeRelation.INTERSECTS;
+        float boost = 1f;
+        String queryName = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                fieldName = currentFieldName;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        currentFieldName = parser.currentName();
+                    } else if (token.isValue() && "shape".equals(currentFieldName)) {
+                        wkt = parser.text();
+                    } else if (token.isValue() && "relation".equals(currentFieldName)) {
+                        relation = ShapeRelation.getRelationByName(parser.text());
+                        if (relation == null) {
+                            throw new QueryParsingException(parseContext, "Unknown shape operation [" + parser.text() + "]");
+                        }
+                    } else {
+                        throw new QueryParsingException(parseContext, "[" + NAME + "] query does not support [" + currentFieldName
+                                + "]");
+                    }
+                }
+            } else if (token.isValue() && "boost".equals(currentFieldName)) {
+                boost = parser.floatValue();
+            } else if (token.isValue() && "_name".equals(currentFieldName)) {
+                queryName = parser.text();
+            } else {
+                throw new QueryParsingException(parseContext, "[" + NAME + "] query does not support [" + currentFieldName + "]");
+            }
+        }
+
+        if (wkt == null) {
+            throw new QueryParsingException(parseContext, "No Shape defined");
+        }
+
+        MappedFieldType fieldType = parseContext.fieldMapper(fieldName);
+        if (fieldType == null) {
+            throw new QueryParsingException(parseContext, "Failed to find wkt field [" + fieldName + "]");
+        }
+        WktFieldMapper fieldMapper = wktFieldMapper(parseContext, fieldType.names().fullName());
+        if (fieldMapper == null) {
+            throw new QueryParsingException(parseContext, "Field [" + fieldName + "] is not a wkt field");
+        }
+
+        Shape shape;
+        try {
+            shape = WktFieldMapper.parseWkt(wkt);
+        } catch (ParseException | RuntimeException e) {
+            throw new QueryParsingException(parseContext, "[" + NAME + "] failed to parse shape [" + wkt + "]", e);
+        }
+
+        Query query;
+        if (fieldMapper.tessellate()) {
+            query = fieldMapper.tessellationQuery(shape, relation);
+        } else {
+            query = prefixTreeQuery(parseContext, fieldMapper, shape, relation);
+        }
+        query.setBoost(boost);
+        if (queryName != null) {
+            parseContext.addNamedQuery(queryName, query);
+        }
+        return query;
+    }
+
+    /**
+     * The mapper of any type will do, as the field is tessellated the same way
+     * in all of them.
+     */
+    private static WktFieldMapper wktFieldMapper(QueryParseContext parseContext, String fullName) {
+        for (DocumentMapper documentMapper : parseContext.mapperService().docMappers(false)) {
+            FieldMapper fieldMapper = documentMapper.mappers().getMapper(fullName);
+            if (fieldMapper instanceof WktFieldMapper) {
+                return (WktFieldMapper) fieldMapper;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The same query as the {@code geo_shape} query.
+     */
+    private static Query prefixTreeQuery(QueryParseContext parseContext, WktFieldMapper fieldMapper, Shape shape,
+            ShapeRelation relation) {
+        PrefixTreeStrategy strategy = fieldMapper.fieldType().defaultStrategy();
+        if (relation == ShapeRelation.DISJOINT) {
+            // the prefix tree strategies don't support disjoint, so execute
+            // it as exists && !intersects
+            BooleanQuery.Builder bool = new BooleanQuery.Builder();
+            bool.add(ExistsQueryParser.newFilter(parseContext, fieldMapper.fieldType().names().fullName(), null),
+                    BooleanClause.Occur.MUST);
+            bool.add(strategy.makeQuery(new SpatialArgs(SpatialOperation.Intersects, shape)), BooleanClause.Occur.MUST_NOT);
+            return new ConstantScoreQuery(bool.build());
+        }
+        SpatialOperation operation;
+        switch (relation) {
+        case WITHIN:
+            operation = SpatialOperation.IsWithin;
+            break;
+        case CONTAINS:
+            operation = SpatialOperation.Contains;
+            break;
+        default:
+            operation = SpatialOperation.Intersects;
+        }
+        return new ConstantScoreQuery(strategy.makeQuery(new SpatialArgs(operation, shape)));
+    }
+}
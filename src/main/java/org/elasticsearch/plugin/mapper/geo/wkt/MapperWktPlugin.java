@@ -1,8 +1,14 @@
 package org.elasticsearch.plugin.mapper.geo.wkt;
 
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.index.mapper.geo.wkt.WktFieldMapper;
+import org.elasticsearch.index.query.wkt.WktShapeQueryParser;
 import org.elasticsearch.indices.IndicesModule;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestModule;
+
+import java.util.ArrayList;
+import java.util.Collection;
 
 /**
  * This plugin adds WKT mapping types and indexes them as native geo
@@ -24,7 +30,19 @@ public class MapperWktPlugin extends Plugin {
         return "Adds WKT mapping types and indexes them as native geo shapes";
     }
 
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+        Collection<Class<? extends LifecycleComponent>> services = new ArrayList<>();
+        services.add(WktWarmer.class);
+        return services;
+    }
+
     public void onModule(IndicesModule indicesModule) {
         indicesModule.registerMapper(WktFieldMapper.CONTENT_TYPE, new WktFieldMapper.TypeParser());
+        indicesModule.registerQueryParser(WktShapeQueryParser.class);
+    }
+
+    public void onModule(RestModule restModule) {
+        restModule.addRestAction(RestWktRemapAction.class);
     }
 }
@@ -0,0 +1,97 @@
+package org.elasticsearch.plugin.mapper.geo.wkt;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Exposes the {@link WktRemapper}:
+ * <p>
+ * POST /{index}/_wkt/remap?dest=new_index&amp;docs_per_second=1000
+ * <p>
+ * Optional parameters are {@code size} (documents per batch),
+ * {@code concurrency} (shards copied in parallel) and {@code docs_per_second}.
+ * <p>
+ * A remap of a large index takes long, so by default the response is sent
+ * once the remap is started, and the progress and result are logged. With
+ * {@code wait_for_completion=true} the response is the {@link WktRemapper.Result},
+ * sent once all documents have been copied.
+ */
+public class RestWktRemapAction extends BaseRestHandler {
+
+    private final ThreadPool threadPool;
+
+    @Inject
+    public RestWktRemapAction(Settings settings, RestController controller, Client client, ThreadPool threadPool) {
+        super(settings, controller, client);
+        this.threadPool = threadPool;
+        controller.registerHandler(POST, "/{index}/_wkt/remap", this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel, Client client) throws Exception {
+        final String dest = request.param("dest");
+        if (dest == null) {
+            throw new IllegalArgumentException("[dest] is required");
+        }
+
+        final WktRemapper remapper = new WktRemapper(client, threadPool.generic(), request.param("index"), dest)
+                .batchSize(request.paramAsInt("size", 500))
+                .concurrency(request.paramAsInt("concurrency", -1))
+                .docsPerSecond(request.paramAsFloat("docs_per_second", -1));
+
+        if (request.paramAsBoolean("wait_for_completion", false) == false) {
+            threadPool.generic().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        WktRemapper.Result result = remapper.remap();
+                        logger.info("remap of [{}] to [{}] done in {}: {} docs copied, {} failed {}", request.param("index"),
+                                dest, result.took(), result.docs(), result.failed(), result.failures());
+                    } catch (Exception e) {
+                        logger.warn("remap of [{}] to [{}] failed", e, request.param("index"), dest);
+                    }
+                }
+            });
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("source", request.param("index"));
+            builder.field("dest", dest);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.ACCEPTED, builder));
+            return;
+        }
+
+        threadPool.generic().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    WktRemapper.Result result = remapper.remap();
+                    XContentBuilder builder = channel.newBuilder();
+                    builder.startObject();
+                    result.toXContent(builder, request);
+                    builder.endObject();
+                    channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                } catch (Exception e) {
+                    try {
+                        channel.sendResponse(new BytesRestResponse(channel, e));
+                    } catch (IOException inner) {
+                        logger.error("failed to send failure response for remap of [{}]", inner, request.param("index"));
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,285 @@
+package org.elasticsearch.plugin.mapper.geo.wkt;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.mapper.geo.wkt.WktFieldMapper;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies all documents of a source index into a destination index, so the
+ * shapes are re-indexed with the {@link WktFieldMapper} settings of the
+ * destination mapping (e.g. another {@code tree}, {@code tree_levels},
+ * {@code precision} or {@code strategy}).
+ * <p>
+ * The destination index must already exist with the new mapping. Every shard
+ * of the source index is streamed separately, from its local copy, and the
+ * shards are processed in parallel. The total indexing rate can be throttled
+ * to a number of documents per second. Progress is logged per shard.
+ */
+public class WktRemapper {
+
+    private static final ESLogger logger = Loggers.getLogger(WktRemapper.class);
+
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(5);
+
+    private static final int MAX_FAILURES = 100;
+
+    private final Client client;
+    private final Executor executor;
+    private final String source;
+    private final String dest;
+
+    private int batchSize = 500;
+    private int concurrency = -1;
+    private float docsPerSecond = -1;
+
+    private long nextBatchNanos;
+
+    /**
+     * @param client
+     *            The client used to read and write the documents.
+     * @param executor
+     *            The executor running the per shard copies.
+     * @param source
+     *            The concrete index to read the documents from.
+     * @param dest
+     *            The index to write the documents to.
+     */
+    public WktRemapper(Client client, Executor executor, String source, String dest) {
+        this.client = client;
+        this.executor = executor;
+        this.source = source;
+        this.dest = dest;
+    }
+
+    /**
+     * The number of documents read and written per request. Defaults to 500.
+     */
+    public WktRemapper batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * The maximum number of shards that is copied at the same time. Defaults
+     * to all shards of the source index.
+     */
+    public WktRemapper concurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * The maximum number of documents written per second, over all shards.
+     * Unthrottled if not positive, which is the default.
+     */
+    public WktRemapper docsPerSecond(float docsPerSecond) {
+        this.docsPerSecond = docsPerSecond;
+        return this;
+    }
+
+    /**
+     * Copies all documents, blocking until every shard is done.
+     *
+     * @throws Exception
+     *             The first failure of a shard copy, after which the other
+     *             copies are cancelled.
+     */
+    public Result remap() throws Exception {
+        long start = System.nanoTime();
+        IndexMetaData indexMetaData = client.admin().cluster().prepareState().setIndices(source).get().getState().getMetaData()
+                .index(source);
+        if (indexMetaData == null) {
+            throw new IndexNotFoundException(source);
+        }
+
+        final int shards = indexMetaData.getNumberOfShards();
+        final Result result = new Result(shards);
+        int workers = concurrency > 0 ? Math.min(concurrency, shards) : shards;
+        final AtomicLong nextShard = new AtomicLong();
+        List<FutureTask<Void>> tasks = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int shard;
+                    while ((shard = (int) nextShard.getAndIncrement()) < shards) {
+                        remapShard(shard, result);
+                    }
+                    return null;
+                }
+            });
+            tasks.add(task);
+            executor.execute(task);
+        }
+        try {
+            for (FutureTask<Void> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            for (FutureTask<Void> task : tasks) {
+                task.cancel(true);
+            }
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+
+        client.admin().indices().prepareRefresh(dest).get();
+        result.took = TimeValue.timeValueNanos(System.nanoTime() - start);
+        return result;
+    }
+
+    private void remapShard(int shard, Result result) throws InterruptedException {
+        SearchResponse response = client.prepareSearch(source)
+                .setPreference("_shards:" + shard + ";_local")
+                .setScroll(SCROLL_KEEP_ALIVE)
+                .setSize(batchSize)
+                .addSort("_doc", SortOrder.ASC)
+                .addFields("_source", "_routing", "_parent")
+                .get();
+        try {
+            while (response.getHits().getHits().length > 0) {
+                throttle(response.getHits().getHits().length);
+                index(response.getHits().getHits(), result);
+                logger.debug("remap of [{}] to [{}]: {} docs copied", source, dest, result.docs());
+                response = client.prepareSearchScroll(response.getScrollId()).setScroll(SCROLL_KEEP_ALIVE).get();
+            }
+        } finally {
+            client.prepareClearScroll().addScrollId(response.getScrollId()).get();
+        }
+        logger.info("remap of [{}] to [{}]: shard [{}] done, {} docs copied, {} failed", source, dest, shard,
+                result.docs(), result.failed());
+    }
+
+    private void index(SearchHit[] hits, Result result) {
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (SearchHit hit : hits) {
+            IndexRequestBuilder request = client.prepareIndex(dest, hit.getType(), hit.getId()).setSource(hit.getSourceRef());
+            SearchHitField routing = hit.field("_routing");
+            if (routing != null) {
+                request.setRouting(routing.<String> getValue());
+            }
+            SearchHitField parent = hit.field("_parent");
+            if (parent != null) {
+                request.setParent(parent.<String> getValue());
+            }
+            bulk.add(request);
+        }
+
+        BulkResponse response = bulk.get();
+        for (BulkItemResponse item : response.getItems()) {
+            if (item.isFailed()) {
+                result.failed(item.getType() + "/" + item.getId() + ": " + item.getFailureMessage());
+            } else {
+                result.docs.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Waits until {@code docs} more documents may be written without
+     * exceeding {@link #docsPerSecond(float)}.
+     */
+    private void throttle(int docs) throws InterruptedException {
+        if (docsPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextBatchNanos < now) {
+                nextBatchNanos = now;
+            }
+            waitNanos = nextBatchNanos - now;
+            nextBatchNanos += (long) (docs * TimeUnit.SECONDS.toNanos(1) / docsPerSecond);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * The outcome of a {@link WktRemapper#remap()}.
+     */
+    public static class Result implements ToXContent {
+        private final int shards;
+        private final AtomicLong docs = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        private TimeValue took;
+
+        Result(int shards) {
+            this.shards = shards;
+        }
+
+        private void failed(String failure) {
+            if (failed.incrementAndGet() <= MAX_FAILURES) {
+                failures.add(failure);
+            }
+        }
+
+        public int shards() {
+            return shards;
+        }
+
+        public long docs() {
+            return docs.get();
+        }
+
+        public long failed() {
+            return failed.get();
+        }
+
+        /**
+         * The first failures, at most 100.
+         */
+        public List<String> failures() {
+            return failures;
+        }
+
+        public TimeValue took() {
+            return took;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("took", took.millis());
+            builder.field("shards", shards);
+            builder.field("docs", docs());
+            builder.field("failed", failed());
+            builder.startArray("failures");
+            synchronized (failures) {
+                for (String failure : failures) {
+                    builder.value(failure);
+                }
+            }
+            return builder.endArray();
+        }
+    }
+}
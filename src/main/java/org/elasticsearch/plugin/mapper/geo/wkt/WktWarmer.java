@@ -0,0 +1,278 @@
+package org.elasticsearch.plugin.mapper.geo.wkt;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTree;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.ParseContext;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.index.mapper.geo.GeoShapeFieldMapper.GeoShapeFieldType;
+import org.elasticsearch.index.mapper.geo.wkt.WktFieldMapper;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesLifecycle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Warms up the {@link WktFieldMapper}s of an index before its shards receive
+ * traffic, so class loading and the one-time setup of the spatial libraries
+ * don't land on the first indexing requests. At the default number of
+ * iterations the parse path runs far less often than the JIT compiler needs
+ * to compile it, so that still happens under the first traffic.
+ * <p>
+ * When enabled with {@code mapper.wkt.warmup.enabled}, a {@code wkt} field is
+ * fed a synthetic corpus of shapes when one of the shards of its index
+ * recovers on this node, which includes the shards recovered at node start.
+ * This is done once per node for every configuration of tree, tree levels,
+ * strategy and field options, as the loaded classes and the setup are shared
+ * by all fields with the same configuration. The shards of an index of which
+ * all configurations are warm start right away, the others wait for the
+ * warm-up. Each shape is parsed into a document and all of its cells are
+ * computed, {@code mapper.wkt.warmup.iterations} times (10 by default), but
+ * no longer than {@code mapper.wkt.warmup.max_time} per shard (5s by
+ * default). The documents are discarded.
+ */
+public class WktWarmer extends AbstractLifecycleComponent<WktWarmer> {
+
+    public static final String ENABLED = "mapper.wkt.warmup.enabled";
+    public static final String ITERATIONS = "mapper.wkt.warmup.iterations";
+    public static final String MAX_TIME = "mapper.wkt.warmup.max_time";
+
+    private final IndicesLifecycle indicesLifecycle;
+    private final boolean enabled;
+    private final int iterations;
+    private final TimeValue maxTime;
+
+    /** Counted down once the warm-up of the configuration is done. */
+    private final ConcurrentMap<String, CountDownLatch> warmed = new ConcurrentHashMap<>();
+    private final AtomicLong warmedShapes = new AtomicLong();
+
+    private final IndicesLifecycle.Listener listener = new IndicesLifecycle.Listener() {
+        /**
+         * Before the shard moves to post recovery: a shard in post recovery
+         * is marked as started with the next cluster state update.
+         */
+        @Override
+        public void beforeIndexShardPostRecovery(IndexShard indexShard) {
+            long start = System.nanoTime();
+            int shapes = warm(indexShard.mapperService());
+            warmedShapes.addAndGet(shapes);
+            if (shapes > 0) {
+                logger.debug("warmed up wkt fields of [{}] with {} shapes in {}ms", indexShard.shardId().getIndex(), shapes,
+                        (System.nanoTime() - start) / 1000000);
+            }
+        }
+    };
+
+    @Inject
+    public WktWarmer(Settings settings, IndicesLifecycle indicesLifecycle) {
+        super(settings);
+        this.indicesLifecycle = indicesLifecycle;
+        this.enabled = settings.getAsBoolean(ENABLED, false);
+        this.iterations = settings.getAsInt(ITERATIONS, 10);
+        this.maxTime = settings.getAsTime(MAX_TIME, TimeValue.timeValueSeconds(5));
+    }
+
+    @Override
+    protected void doStart() {
+        if (enabled) {
+            indicesLifecycle.addListener(listener);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        indicesLifecycle.removeListener(listener);
+    }
+
+    @Override
+    protected void doClose() {
+    }
+
+    /**
+     * The number of shapes parsed by the warm-ups of recovering shards.
+     */
+    public long warmedShapes() {
+        return warmedShapes.get();
+    }
+
+    /**
+     * Feeds the synthetic corpus to every {@code wkt} field of the index of
+     * which the configuration isn't warm yet, or waits for the warm-up of that
+     * configuration if it is in progress. A configuration of which the
+     * warm-up failed or ran out of time is warmed up again with the next
+     * index. Failures are logged and skip the rest of the field.
+     *
+     * @return The number of shapes parsed.
+     */
+    int warm(MapperService mapperService) {
+        long deadline = System.nanoTime() + maxTime.nanos();
+        int shapes = 0;
+        for (DocumentMapper documentMapper : mapperService.docMappers(false)) {
+            for (FieldMapper fieldMapper : documentMapper.mappers()) {
+                if (!(fieldMapper instanceof WktFieldMapper)) {
+                    continue;
+                }
+                String configuration = configuration((WktFieldMapper) fieldMapper);
+                CountDownLatch done = new CountDownLatch(1);
+                CountDownLatch warming = warmed.putIfAbsent(configuration, done);
+                if (warming != null) {
+                    try {
+                        warming.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    continue;
+                }
+                int fieldShapes = 0;
+                try {
+                    fieldShapes = warm(mapperService.index().name(), documentMapper, (WktFieldMapper) fieldMapper, deadline);
+                } catch (Exception e) {
+                    logger.debug("failed to warm up wkt field [{}] of [{}]", e, fieldMapper.name(), documentMapper.type());
+                } finally {
+                    if (fieldShapes == 0) {
+                        warmed.remove(configuration, done);
+                    }
+                    done.countDown();
+                }
+                shapes += fieldShapes;
+            }
+        }
+        return shapes;
+    }
+
+    /**
+     * The tree, tree levels, strategy and field options, which determine the
+     * code the field runs and the classes it loads.
+     */
+    static String configuration(WktFieldMapper fieldMapper) {
+        GeoShapeFieldType fieldType = fieldMapper.fieldType();
+        SpatialPrefixTree grid = fieldType.defaultStrategy().getGrid();
+        return grid.getClass().getName() + "/" + grid.getMaxLevels() + "/" + fieldType.strategyName() + "/points_only="
+                + fieldType.pointsOnly() + "/compact_cells=" + fieldMapper.compactCells() + "/max_cells_per_shape="
+                + fieldMapper.maxCellsPerShape() + "/tessellate=" + fieldMapper.tessellate() + "/index_cells="
+                + fieldMapper.indexCells() + "/allowed_types=" + fieldMapper.allowedTypes();
+    }
+
+    private int warm(String index, DocumentMapper documentMapper, WktFieldMapper fieldMapper, long deadline)
+            throws IOException {
+        List<String> corpus = corpus(fieldMapper);
+        String indexName = fieldMapper.fieldType().names().indexName();
+        String[] path = fieldMapper.name().split("\\.");
+        int shapes = 0;
+        for (int i = 0; i < iterations && System.nanoTime() < deadline; i++) {
+            for (String wkt : corpus) {
+                XContentBuilder source = jsonBuilder().startObject();
+                for (int j = 0; j < path.length - 1; j++) {
+                    source.startObject(path[j]);
+                }
+                source.field(path[path.length - 1], wkt);
+                for (int j = 0; j < path.length; j++) {
+                    source.endObject();
+                }
+                ParsedDocument doc = documentMapper.parse(index, documentMapper.type(), "0", source.bytes());
+                for (ParseContext.Document document : doc.docs()) {
+                    for (IndexableField field : document.getFields(indexName)) {
+                        consume(field);
+                    }
+                }
+                shapes++;
+            }
+        }
+        return shapes;
+    }
+
+    /**
+     * Consumes the tokens of the field, which computes its cells.
+     */
+    private static void consume(IndexableField field) throws IOException {
+        try (TokenStream tokenStream = field.tokenStream(null, null)) {
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+            }
+            tokenStream.end();
+        }
+    }
+
+    /**
+     * Small shapes of every type, limited to the types the field accepts.
+     * Larger shapes only add cells, which exercise the same code, and make the
+     * warm-up a lot slower. The shapes are the same for every field.
+     */
+    static List<String> corpus(WktFieldMapper fieldMapper) {
+        Random random = new Random(0);
+        boolean pointsOnly = fieldMapper.fieldType().pointsOnly();
+        Set<String> allowedTypes = fieldMapper.allowedTypes();
+
+        List<String> corpus = new ArrayList<>();
+        for (double size : new double[] { 0.0001, 0.001 }) {
+            double lon = -150 + 300 * random.nextDouble();
+            double lat = -80 + 160 * random.nextDouble();
+            add(corpus, allowedTypes, "POINT", "(" + lon + " " + lat + ")");
+            if (pointsOnly) {
+                continue;
+            }
+            add(corpus, allowedTypes, "MULTIPOINT", "(" + lon + " " + lat + ", " + (lon + size) + " " + (lat + size) + ")");
+            add(corpus, allowedTypes, "LINESTRING", line(random, lon, lat, size));
+            add(corpus, allowedTypes, "MULTILINESTRING", "(" + line(random, lon, lat, size) + ", "
+                    + line(random, lon + size, lat + size, size) + ")");
+            add(corpus, allowedTypes, "POLYGON", "(" + ring(lon, lat, size, 12) + ")");
+            add(corpus, allowedTypes, "POLYGON", "(" + ring(lon, lat, size, 12) + ", " + ring(lon, lat, size / 3, 5) + ")");
+            add(corpus, allowedTypes, "MULTIPOLYGON", "((" + ring(lon, lat, size, 8) + "), (" + ring(lon + 3 * size, lat, size, 6)
+                    + "))");
+            add(corpus, allowedTypes, "ENVELOPE", String.format(Locale.ROOT, "(%s, %s, %s, %s)", lon - size, lon + size,
+                    lat + size, lat - size));
+        }
+        return corpus;
+    }
+
+    private static void add(List<String> corpus, Set<String> allowedTypes, String type, String coordinates) {
+        if (allowedTypes == null || allowedTypes.contains(type)) {
+            corpus.add(type + " " + coordinates);
+        }
+    }
+
+    private static String line(Random random, double lon, double lat, double size) {
+        StringBuilder line = new StringBuilder("(");
+        for (int i = 0; i < 10; i++) {
+            if (i > 0) {
+                line.append(", ");
+            }
+            line.append(lon + i * size / 10).append(' ').append(lat + size * random.nextDouble());
+        }
+        return line.append(')').toString();
+    }
+
+    /**
+     * A closed, counterclockwise ring approximating a circle.
+     */
+    private static String ring(double lon, double lat, double radius, int vertices) {
+        StringBuilder ring = new StringBuilder("(");
+        for (int i = 0; i <= vertices; i++) {
+            if (i > 0) {
+                ring.append(", ");
+            }
+            double angle = 2 * Math.PI * (i % vertices) / vertices;
+            ring.append(lon + radius * Math.cos(angle)).append(' ').append(lat + radius * Math.sin(angle));
+        }
+        return ring.append(')').toString();
+    }
+}
@@ -0,0 +1,72 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.spatial.prefix.RecursivePrefixTreeStrategy;
+import org.apache.lucene.spatial.prefix.tree.PackedQuadPrefixTree;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.test.ESTestCase;
+
+import com.spatial4j.core.shape.Point;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests that the {@link QuadPointField} emits exactly the tokens the
+ * prefix tree strategy emits for a point.
+ */
+public class QuadPointFieldTest extends ESTestCase {
+
+    public void testSameTokensAsStrategy() throws IOException {
+        int levels = randomIntBetween(1, PackedQuadPrefixTree.MAX_LEVELS_POSSIBLE);
+        RecursivePrefixTreeStrategy strategy = new RecursivePrefixTreeStrategy(
+                new PackedQuadPrefixTree(WktFieldMapper.SPATIAL_CONTEXT, levels), "location");
+
+        TokenStream reuse = null;
+        for (int i = 0; i < 100; i++) {
+            Point point = WktFieldMapper.SPATIAL_CONTEXT.makePoint(-180 + 360 * randomDouble(), -90 + 180 * randomDouble());
+            reuse = assertSameTokens(strategy, point, levels, reuse);
+        }
+    }
+
+    public void testCellBoundaries() throws IOException {
+        int levels = randomIntBetween(1, 16);
+        RecursivePrefixTreeStrategy strategy = new RecursivePrefixTreeStrategy(
+                new PackedQuadPrefixTree(WktFieldMapper.SPATIAL_CONTEXT, levels), "location");
+
+        double[][] points = { { 0, 0 }, { -180, -90 }, { 180, 90 }, { -180, 90 }, { 180, -90 }, { 180, 0 }, { 0, 90 }, { 0, -90 },
+                { 90, 45 }, { -90, -45 }, { 11.25, 5.625 } };
+        TokenStream reuse = null;
+        for (double[] point : points) {
+            reuse = assertSameTokens(strategy, WktFieldMapper.SPATIAL_CONTEXT.makePoint(point[0], point[1]), levels, reuse);
+        }
+    }
+
+    private static TokenStream assertSameTokens(RecursivePrefixTreeStrategy strategy, Point point, int levels, TokenStream reuse)
+            throws IOException {
+        Field[] expected = strategy.createIndexableFields(point);
+        assertThat(expected.length, equalTo(1));
+
+        Field actual = new QuadPointField(strategy.getFieldName(), point.getX(), point.getY(), levels);
+        TokenStream tokenStream = actual.tokenStream(null, reuse);
+        assertThat(point.toString(), tokens(tokenStream), equalTo(tokens(expected[0].tokenStream(null, null))));
+        return tokenStream;
+    }
+
+    private static List<BytesRef> tokens(TokenStream tokenStream) throws IOException {
+        List<BytesRef> tokens = new ArrayList<>();
+        TermToBytesRefAttribute bytesAtt = tokenStream.getAttribute(TermToBytesRefAttribute.class);
+        tokenStream.reset();
+        while (tokenStream.incrementToken()) {
+            tokens.add(BytesRef.deepCopyOf(bytesAtt.getBytesRef()));
+        }
+        tokenStream.end();
+        tokenStream.close();
+        return tokens;
+    }
+}
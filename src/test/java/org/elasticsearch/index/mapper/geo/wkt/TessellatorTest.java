@@ -0,0 +1,76 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import org.elasticsearch.test.ESTestCase;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.io.WKTReader;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests that the {@link Tessellator} covers shapes exactly.
+ */
+public class TessellatorTest extends ESTestCase {
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    public void testPolygonWithHole() throws Exception {
+        Geometry polygon = new WKTReader(FACTORY).read("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0), (4 4, 6 4, 6 6, 4 6, 4 4))");
+        double[] triangles = Tessellator.tessellate(polygon);
+        assertThat(area(triangles), closeTo(96, 1e-9));
+        assertCovered(polygon, triangles);
+        // 8 vertices, and 2 for the bridge to the hole
+        assertThat(triangles.length / Tessellator.TRIANGLE_SIZE, equalTo(8));
+    }
+
+    public void testRandomPolygon() throws Exception {
+        // a star shaped, so simple, polygon with a few hundred vertices
+        int vertices = randomIntBetween(3, 300);
+        Coordinate[] shell = new Coordinate[vertices + 1];
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            double radius = 1 + randomDouble();
+            shell[i] = new Coordinate(radius * Math.cos(angle), radius * Math.sin(angle));
+        }
+        shell[vertices] = shell[0];
+        LinearRing ring = FACTORY.createLinearRing(shell);
+        Geometry polygon = FACTORY.createPolygon(ring, null);
+
+        double[] triangles = Tessellator.tessellate(polygon);
+        assertThat(area(triangles), closeTo(polygon.getArea(), 1e-9));
+        assertCovered(polygon, triangles);
+        // proportional to the number of vertices, not the area
+        assertThat(triangles.length / Tessellator.TRIANGLE_SIZE, equalTo(vertices - 2));
+    }
+
+    public void testPointsAndLines() throws Exception {
+        Geometry collection = new WKTReader(FACTORY).read(
+                "GEOMETRYCOLLECTION (POINT (1 2), LINESTRING (0 0, 1 1, 2 0))");
+        double[] triangles = Tessellator.tessellate(collection);
+        assertThat(triangles, equalTo(new double[] { 1, 2, 1, 2, 1, 2, 0, 0, 1, 1, 0, 0, 1, 1, 2, 0, 1, 1 }));
+    }
+
+    private static double area(double[] triangles) {
+        double area = 0;
+        for (int i = 0; i < triangles.length; i += Tessellator.TRIANGLE_SIZE) {
+            area += Math.abs((triangles[i + 2] - triangles[i]) * (triangles[i + 5] - triangles[i + 1])
+                    - (triangles[i + 4] - triangles[i]) * (triangles[i + 3] - triangles[i + 1])) / 2;
+        }
+        return area;
+    }
+
+    private static void assertCovered(Geometry polygon, double[] triangles) {
+        Geometry buffered = polygon.buffer(1e-9);
+        for (int i = 0; i < triangles.length; i += Tessellator.TRIANGLE_SIZE) {
+            Coordinate a = new Coordinate(triangles[i], triangles[i + 1]);
+            Coordinate b = new Coordinate(triangles[i + 2], triangles[i + 3]);
+            Coordinate c = new Coordinate(triangles[i + 4], triangles[i + 5]);
+            Geometry triangle = FACTORY.createPolygon(FACTORY.createLinearRing(new Coordinate[] { a, b, c, a }), null);
+            assertTrue(triangle + " outside " + polygon, buffered.covers(triangle));
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.IndexableField;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.test.EsSingleWktMockNodeTestCase;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Regression suite for the number of prefix tree cells the
+ * {@link WktFieldMapper} emits per shape.
+ * <p>
+ * A fixed corpus of reference WKT geometries is parsed into a field for every
+ * combination of {@code tree}, {@code tree_levels}/{@code precision},
+ * {@code distance_error_pct} and {@code strategy}, plus a few with
+ * {@code compact_cells} and {@code max_cells_per_shape}. For each field and shape
+ * the emitted cells and term bytes are compared against
+ * {@code cell-counts.properties}, and the test fails if either grew beyond
+ * {@code tests.wkt.cells.tolerance} (default 5%). The parse time per shape is
+ * logged, but not asserted, as it depends on the machine.
+ * <p>
+ * After an intended change, record a new baseline with
+ * {@code -Dtests.wkt.cells.record=/path/to/cell-counts.properties}.
+ */
+public class WktFieldMapperCellCountTest extends EsSingleWktMockNodeTestCase {
+
+    private static final String INDEX = "cell_counts";
+    private static final String TYPE = "my_type";
+
+    private static final String[] TREES = { "geohash", "quadtree" };
+    private static final String[] DISTANCE_ERROR_PCTS = { "0.01", "0.025", "0.1" };
+    private static final int[] MAX_CELLS_PER_SHAPE = { 64, 512 };
+
+    private static final Map<String, String> CORPUS = new LinkedHashMap<>();
+
+    static {
+        CORPUS.put("point", "POINT (13.400544 52.530286)");
+        CORPUS.put("linestring", "LINESTRING (13.38 52.51, 13.40 52.53, 13.45 52.52)");
+        CORPUS.put("island", "POLYGON ((-122.83 48.57, -122.77 48.56, -122.79 48.53, -122.83 48.57))");
+        CORPUS.put("polygon_with_hole", "POLYGON ((4.7 52.2, 5.1 52.2, 5.1 52.5, 4.7 52.5, 4.7 52.2), "
+                + "(4.85 52.3, 4.95 52.3, 4.95 52.4, 4.85 52.4, 4.85 52.3))");
+        CORPUS.put("multipolygon", "MULTIPOLYGON (((102 2, 103 2, 103 3, 102 3, 102 2)), "
+                + "((100 0, 101 0, 101 1, 100 1, 100 0), (100.2 0.2, 100.8 0.2, 100.8 0.8, 100.2 0.8, 100.2 0.2)))");
+        CORPUS.put("envelope", "ENVELOPE (-10, 10, 10, -10)");
+        CORPUS.put("large_polygon", "POLYGON ((-10 35, 5 35, 20 45, 30 60, 10 70, -10 60, -10 35))");
+    }
+
+    public void testCellCounts() throws Exception {
+        Map<String, Map<String, Object>> fields = fields();
+        IndexService indexService = createIndex(INDEX, Settings.EMPTY, TYPE, mapping(fields));
+        DocumentMapper documentMapper = indexService.mapperService().documentMapper(TYPE);
+
+        double tolerance = Double.parseDouble(System.getProperty("tests.wkt.cells.tolerance", "0.05"));
+        Properties baseline = new Properties();
+        try (InputStream in = getClass().getResourceAsStream("cell-counts.properties")) {
+            if (in != null) {
+                baseline.load(in);
+            }
+        }
+
+        Map<String, String> measured = new TreeMap<>();
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Object>> field : fields.entrySet()) {
+            boolean pointsOnly = "term".equals(field.getValue().get("strategy"));
+            for (Map.Entry<String, String> shape : CORPUS.entrySet()) {
+                if (pointsOnly && !shape.getValue().startsWith("POINT")) {
+                    continue;
+                }
+                String key = field.getKey() + "." + shape.getKey();
+                long[] cells = measure(documentMapper, field.getKey(), shape.getValue());
+                measured.put(key, cells[0] + "," + cells[1]);
+                logger.info(String.format(Locale.ROOT, "%s: %d cells, %d term bytes, %.1f us", key, cells[0], cells[1],
+                        cells[2] / 1000.0));
+
+                String expected = baseline.getProperty(key);
+                if (expected == null) {
+                    regressions.add(key + " has no baseline");
+                    continue;
+                }
+                String[] expectedCells = expected.split(",");
+                if (cells[0] > Long.parseLong(expectedCells[0]) * (1 + tolerance)
+                        || cells[1] > Long.parseLong(expectedCells[1]) * (1 + tolerance)) {
+                    regressions.add(key + " emits " + cells[0] + " cells, " + cells[1] + " term bytes; baseline is " + expected);
+                }
+            }
+        }
+
+        String record = System.getProperty("tests.wkt.cells.record");
+        if (record != null) {
+            record(record, measured);
+            return;
+        }
+        assertTrue("cell count regressions:\n" + Strings.collectionToDelimitedString(regressions, "\n"), regressions.isEmpty());
+    }
+
+    /**
+     * Parses a document with the shape in the field and counts the emitted
+     * tokens. The cells are computed while the tokens are consumed, so the
+     * time includes both.
+     *
+     * @return The number of cells, their total size in bytes, and the average
+     *         time in nanoseconds.
+     */
+    private static long[] measure(DocumentMapper documentMapper, String field, String wkt) throws IOException {
+        XContentBuilder source = jsonBuilder().startObject().field(field, wkt).endObject();
+
+        // warm up once, then time a few iterations
+        int iterations = 2;
+        long[] cells = null;
+        long start = 0;
+        for (int i = 0; i <= iterations; i++) {
+            if (i == 1) {
+                start = System.nanoTime();
+            }
+            cells = countCells(documentMapper.parse(INDEX, TYPE, "1", source.bytes()), field);
+        }
+        return new long[] { cells[0], cells[1], (System.nanoTime() - start) / iterations };
+    }
+
+    private static long[] countCells(ParsedDocument doc, String field) throws IOException {
+        long cells = 0, bytes = 0;
+        for (IndexableField indexableField : doc.rootDoc().getFields(field)) {
+            try (TokenStream tokenStream = indexableField.tokenStream(null, null)) {
+                TermToBytesRefAttribute bytesAtt = tokenStream.getAttribute(TermToBytesRefAttribute.class);
+                tokenStream.reset();
+                while (tokenStream.incrementToken()) {
+                    cells++;
+                    bytes += bytesAtt.getBytesRef().length;
+                }
+                tokenStream.end();
+            }
+        }
+        return new long[] { cells, bytes };
+    }
+
+    /**
+     * Every combination of mapping options, by field name.
+     */
+    private static Map<String, Map<String, Object>> fields() {
+        Map<String, Map<String, Object>> fields = new LinkedHashMap<>();
+        for (String tree : TREES) {
+            Map<String, Object> term = new LinkedHashMap<>();
+            term.put("tree", tree);
+            term.put("strategy", "term");
+            fields.put(tree + "_term", term);
+
+            String[] treeLevels = "geohash".equals(tree) ? new String[] { "6", "9" } : new String[] { "12", "20" };
+            List<String[]> resolutions = new ArrayList<>();
+            resolutions.add(null);
+            for (String levels : treeLevels) {
+                resolutions.add(new String[] { "tree_levels", levels });
+            }
+            resolutions.add(new String[] { "precision", "50km" });
+            resolutions.add(new String[] { "precision", "1km" });
+
+            for (String[] resolution : resolutions) {
+                for (String distanceErrorPct : DISTANCE_ERROR_PCTS) {
+                    Map<String, Object> options = new LinkedHashMap<>();
+                    options.put("tree", tree);
+                    String name = tree;
+                    if (resolution != null) {
+                        options.put(resolution[0], resolution[1]);
+                        name += "_" + resolution[0] + "_" + resolution[1];
+                    }
+                    options.put("distance_error_pct", distanceErrorPct);
+                    fields.put((name + "_pct_" + distanceErrorPct).replace('.', '_'), options);
+                }
+            }
+
+            Map<String, Object> compact = new LinkedHashMap<>();
+            compact.put("tree", tree);
+            compact.put("compact_cells", true);
+            fields.put(tree + "_compact_cells", compact);
+
+            for (int maxCells : MAX_CELLS_PER_SHAPE) {
+                Map<String, Object> budget = new LinkedHashMap<>();
+                budget.put("tree", tree);
+                budget.put("tree_levels", "geohash".equals(tree) ? 9 : 20);
+                budget.put("compact_cells", true);
+                budget.put("max_cells_per_shape", maxCells);
+                fields.put(tree + "_max_cells_per_shape_" + maxCells, budget);
+            }
+        }
+        return fields;
+    }
+
+    private static XContentBuilder mapping(Map<String, Map<String, Object>> fields) throws IOException {
+        XContentBuilder mapping = jsonBuilder().startObject().startObject(TYPE).startObject("properties");
+        for (Map.Entry<String, Map<String, Object>> field : fields.entrySet()) {
+            mapping.startObject(field.getKey()).field("type", "wkt");
+            for (Map.Entry<String, Object> option : field.getValue().entrySet()) {
+                mapping.field(option.getKey(), option.getValue());
+            }
+            mapping.endObject();
+        }
+        return mapping.endObject().endObject().endObject();
+    }
+
+    private static void record(String path, Map<String, String> measured) throws IOException {
+        StringBuilder properties = new StringBuilder();
+        properties.append("# Prefix tree cells and term bytes per shape, see WktFieldMapperCellCountTest\n");
+        for (Map.Entry<String, String> entry : measured.entrySet()) {
+            properties.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        try (OutputStream out = new FileOutputStream(path)) {
+            out.write(properties.toString().getBytes("ISO-8859-1"));
+        }
+    }
+}
@@ -1,20 +1,37 @@
 package org.elasticsearch.index.mapper.geo.wkt;
 
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.geo.builders.ShapeBuilder;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.mapper.DocumentMapper;
 import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.test.EsSingleWktMockNodeTestCase;
 import org.elasticsearch.test.geo.RandomShapeGenerator;
 
 import com.spatial4j.core.io.WKTWriter;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.geoDistanceQuery;
 import static org.elasticsearch.index.query.QueryBuilders.geoIntersectionQuery;
 import static org.elasticsearch.index.query.QueryBuilders.geoShapeQuery;
 import static org.elasticsearch.index.query.QueryBuilders.geoWithinQuery;
+import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
@@ -179,6 +196,562 @@ public class WktFieldMapperTest extends EsSingleWktMockNodeTestCase {
         assertEquals(1, response.getHits().getTotalHits());
     }
     
+    public void testMultiValue() throws Exception {
+        String[] index_type = initWktQuadTree();
+        final String index = index_type[0], type = index_type[1];
+
+        client()
+        .prepareIndex(index, type, "1")
+        .setSource(jsonBuilder()
+                .startObject()
+                    .field("name", "Document1")
+                    .array("wkt-quadtree",
+                            "POLYGON ((10 10, 20 10, 20 20, 10 20, 10 10))",
+                            "POLYGON ((15 15, 25 15, 25 25, 15 25, 15 15))",
+                            "POINT (-30 -30)")
+                .endObject()
+        )
+        .setRefresh(true)
+        .execute()
+        .actionGet();
+
+        ShapeBuilder shape = ShapeBuilder.newEnvelope().topLeft(-31, -29).bottomRight(-29, -31);
+
+        SearchResponse searchResponse = client()
+                .prepareSearch(index)
+                .setTypes(type)
+                .setQuery(geoIntersectionQuery("wkt-quadtree", shape))
+                .execute()
+                .actionGet();
+
+        assertSearchResponse(searchResponse);
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(1l));
+        assertThat(searchResponse.getHits().getAt(0).id(), equalTo("1"));
+
+        shape = ShapeBuilder.newEnvelope().topLeft(22, 24).bottomRight(24, 22);
+
+        searchResponse = client()
+                .prepareSearch(index)
+                .setTypes(type)
+                .setQuery(geoIntersectionQuery("wkt-quadtree", shape))
+                .execute()
+                .actionGet();
+
+        assertSearchResponse(searchResponse);
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(1l));
+    }
+
+    public void testMultiValueCells() throws Exception {
+        IndexService indexService = createIndex("multi_value_cells", Settings.EMPTY, "my_type_8", "location", "type=wkt");
+        DocumentMapper documentMapper = indexService.mapperService().documentMapper("my_type_8");
+
+        String amsterdam = "POLYGON ((4.88 52.36, 4.90 52.36, 4.90 52.38, 4.88 52.38, 4.88 52.36))";
+        String berlin = "POLYGON ((13.38 52.50, 13.42 52.50, 13.42 52.53, 13.38 52.53, 13.38 52.50))";
+        String point = "POINT (13.400544 52.530286)";
+
+        // every value keeps the precision it has on its own
+        Set<BytesRef> expected = new HashSet<>();
+        int total = 0;
+        for (String wkt : Arrays.asList(amsterdam, berlin, point)) {
+            Set<BytesRef> cells = cells(documentMapper, wkt);
+            total += cells.size();
+            expected.addAll(cells);
+        }
+        Set<BytesRef> merged = cells(documentMapper, amsterdam, berlin, point);
+        assertThat(merged, equalTo(expected));
+        assertThat(merged.size() < total, equalTo(true));
+    }
+
+    private static Set<BytesRef> cells(DocumentMapper documentMapper, String... wkt) throws IOException {
+        ParsedDocument doc = documentMapper.parse("multi_value_cells", "my_type_8", "1",
+                jsonBuilder().startObject().array("location", wkt).endObject().bytes());
+        Set<BytesRef> cells = new HashSet<>();
+        for (IndexableField field : doc.rootDoc().getFields("location")) {
+            try (TokenStream tokenStream = field.tokenStream(null, null)) {
+                TermToBytesRefAttribute bytesAtt = tokenStream.getAttribute(TermToBytesRefAttribute.class);
+                tokenStream.reset();
+                while (tokenStream.incrementToken()) {
+                    assertThat(cells.add(BytesRef.deepCopyOf(bytesAtt.getBytesRef())), equalTo(true));
+                }
+                tokenStream.end();
+            }
+        }
+        return cells;
+    }
+
+    public void testMultiValuePointsOnly() throws Exception {
+        String[] index_type = initWktComplexPointsOnly();
+        final String index = index_type[0], type = index_type[1];
+
+        client()
+        .prepareIndex(index, type, "1")
+        .setSource(jsonBuilder()
+                .startObject()
+                    .field("name", "Document1")
+                    .array("location", "POINT (-30 -30)", "POINT (30 30)")
+                .endObject()
+        )
+        .setRefresh(true)
+        .execute()
+        .actionGet();
+
+        ShapeBuilder shape = ShapeBuilder.newEnvelope().topLeft(25, 35).bottomRight(35, 25);
+
+        SearchResponse searchResponse = client()
+                .prepareSearch(index)
+                .setTypes(type)
+                .setQuery(geoIntersectionQuery("location", shape))
+                .execute()
+                .actionGet();
+
+        assertSearchResponse(searchResponse);
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(1l));
+
+        try {
+            client()
+            .prepareIndex(index, type, "2")
+            .setSource(jsonBuilder()
+                    .startObject()
+                        .field("name", "Document2")
+                        .array("location", "POINT (-30 -30)", "LINESTRING (30 30, 40 40)")
+                    .endObject()
+            )
+            .setRefresh(true).execute().actionGet();
+            fail("expected points only violation");
+        } catch (MapperParsingException e) {
+            assertThat(e.getCause().getMessage(), containsString("is configured for points only"));
+        }
+    }
+    
+    public void testAllowedTypes() throws Exception {
+        final String index = "allowed_types";
+        final String type = "my_type_4";
+
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject(type)
+                        .startObject("properties")
+                            .startObject("parcel")
+                                .field("type", "wkt")
+                                .array("allowed_types", "polygon", "MultiPolygon")
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        client().admin().indices().prepareCreate(index).addMapping(type, mapping).execute().actionGet();
+        ensureGreen();
+
+        Map<String, Object> parcel = getFieldMapping(index, type, "parcel");
+        assertThat(parcel.get("allowed_types"), equalTo((Object) Arrays.asList("POLYGON", "MULTIPOLYGON")));
+
+        client()
+        .prepareIndex(index, type, "1")
+        .setSource(jsonBuilder()
+                .startObject()
+                    .field("parcel", "  polygon ((10 10, 20 10, 20 20, 10 20, 10 10))")
+                .endObject()
+        )
+        .setRefresh(true)
+        .execute()
+        .actionGet();
+
+        try {
+            client()
+            .prepareIndex(index, type, "2")
+            .setSource(jsonBuilder()
+                    .startObject()
+                        .field("parcel", "POLYGONX ((10 10, 20 10, 20 20, 10 20, 10 10))")
+                    .endObject()
+            )
+            .setRefresh(true).execute().actionGet();
+            fail("expected allowed_types violation");
+        } catch (MapperParsingException e) {
+            assertThat(e.getCause().getMessage(), containsString("only allows [POLYGON, MULTIPOLYGON] but a POLYGONX was found"));
+        }
+
+        try {
+            client()
+            .prepareIndex(index, type, "3")
+            .setSource(jsonBuilder()
+                    .startObject()
+                        .field("parcel", "POINT (13.400544 52.530286)")
+                    .endObject()
+            )
+            .setRefresh(true).execute().actionGet();
+            fail("expected allowed_types violation");
+        } catch (MapperParsingException e) {
+            assertThat(e.getCause().getMessage(), containsString("but a POINT was found"));
+        }
+    }
+
+    public void testUnknownAllowedType() throws Exception {
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject("my_type")
+                        .startObject("properties")
+                            .startObject("parcel")
+                                .field("type", "wkt")
+                                .field("allowed_types", "POLYGON,CIRCLE")
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        try {
+            client().admin().indices().prepareCreate("unknown_allowed_type").addMapping("my_type", mapping).execute().actionGet();
+            fail("expected unknown allowed type");
+        } catch (MapperParsingException e) {
+            assertThat(e.getMessage(), containsString("unknown allowed_types [CIRCLE]"));
+        }
+    }
+
+    public void testDerivedSubFields() throws Exception {
+        final String index = "derived";
+        final String type = "my_type_5";
+        createDerivedIndex(index, type);
+
+        Map<String, Object> location = getFieldMapping(index, type, "location");
+        assertThat(((Map<?, ?>) location.get("derive")).get("vertices"), equalTo((Object) "vertex_count"));
+        assertThat(((Map<?, ?>) location.get("fields")).size(), equalTo(5));
+
+        String wkt = "POLYGON ((10 10, 11 10, 11 11, 10 11, 10 10))";
+        assertDerived(index, type, wkt, boolQuery()
+                .filter(geoDistanceQuery("location.centroid").point(10.5, 10.5).distance("1km"))
+                .filter(termQuery("location.vertices", 5))
+                .filter(rangeQuery("location.area").from(1.1e10).to(1.3e10))
+                .filter(rangeQuery("location.length").from(4.3e5).to(4.5e5))
+                .filter(termQuery("location.raw", wkt)));
+    }
+
+    public void testDerivedSubFieldsAcrossDateline() throws Exception {
+        final String index = "derived_dateline";
+        final String type = "my_type_5";
+        createDerivedIndex(index, type);
+
+        // Cut at the dateline, the centroid would be near (0, 5), the length
+        // would include the cut and the vertex count the vertices along it
+        assertDerived(index, type, "POLYGON ((170 0, -170 0, -170 10, 170 10, 170 0))", boolQuery()
+                .filter(geoDistanceQuery("location.centroid").point(5, 180).distance("20km"))
+                .filter(termQuery("location.vertices", 5))
+                .filter(rangeQuery("location.length").from(6.5e6).to(6.8e6)));
+        assertDerived(index, type, "ENVELOPE (170, -170, 10, 0)", boolQuery()
+                .filter(geoDistanceQuery("location.centroid").point(5, 180).distance("20km"))
+                .filter(termQuery("location.vertices", 5)));
+        assertDerived(index, type, "LINESTRING (175 0, -175 0)", boolQuery()
+                .filter(geoDistanceQuery("location.centroid").point(0, 180).distance("1km"))
+                .filter(termQuery("location.vertices", 2))
+                .filter(rangeQuery("location.length").from(1.1e6).to(1.12e6)));
+        // only the member crossing the dateline is read again
+        assertDerived(index, type, "MULTIPOLYGON (((170 0, -170 0, -170 10, 170 10, 170 0)), ((0 0, 1 0, 1 1, 0 1, 0 0)))",
+                boolQuery()
+                .filter(termQuery("location.vertices", 10))
+                .filter(rangeQuery("location.length").from(6.9e6).to(7.3e6)));
+    }
+
+    public void testDerivedSubFieldsCollection() throws Exception {
+        final String index = "derived_collection";
+        final String type = "my_type_5";
+        createDerivedIndex(index, type);
+
+        assertDerived(index, type, "GEOMETRYCOLLECTION (POINT (0 0), LINESTRING (0 0, 0 1))", boolQuery()
+                .filter(geoDistanceQuery("location.centroid").point(0.5, 0).distance("1km"))
+                .filter(termQuery("location.vertices", 3))
+                .filter(rangeQuery("location.length").from(1.1e5).to(1.12e5)));
+        assertDerived(index, type, "MULTIPOINT ((0 0), (2 0))", boolQuery()
+                .filter(geoDistanceQuery("location.centroid").point(0, 1).distance("1km"))
+                .filter(termQuery("location.vertices", 2)));
+    }
+
+    private void createDerivedIndex(String index, String type) throws IOException {
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject(type)
+                        .startObject("properties")
+                            .startObject("location")
+                                .field("type", "wkt")
+                                .startObject("derive")
+                                    .field("centroid", "centroid")
+                                    .field("area", "area")
+                                    .field("length", "length")
+                                    .field("vertices", "vertex_count")
+                                .endObject()
+                                .startObject("fields")
+                                    .startObject("centroid")
+                                        .field("type", "geo_point")
+                                    .endObject()
+                                    .startObject("area")
+                                        .field("type", "double")
+                                    .endObject()
+                                    .startObject("length")
+                                        .field("type", "double")
+                                    .endObject()
+                                    .startObject("vertices")
+                                        .field("type", "integer")
+                                    .endObject()
+                                    .startObject("raw")
+                                        .field("type", "string")
+                                        .field("index", "not_analyzed")
+                                    .endObject()
+                                .endObject()
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        client().admin().indices().prepareCreate(index).addMapping(type, mapping).execute().actionGet();
+        ensureGreen();
+    }
+
+    /**
+     * Indexes the WKT string as the only document, and checks the query
+     * matches it.
+     */
+    private void assertDerived(String index, String type, String wkt, QueryBuilder query) throws IOException {
+        client()
+        .prepareIndex(index, type, "1")
+        .setSource(jsonBuilder()
+                .startObject()
+                    .field("location", wkt)
+                .endObject()
+        )
+        .setRefresh(true)
+        .execute()
+        .actionGet();
+
+        SearchResponse searchResponse = client()
+                .prepareSearch(index)
+                .setTypes(type)
+                .setQuery(query)
+                .execute()
+                .actionGet();
+
+        assertSearchResponse(searchResponse);
+        assertThat(wkt, searchResponse.getHits().getTotalHits(), equalTo(1l));
+    }
+
+    public void testDeriveIntoMissingSubField() throws Exception {
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject("my_type")
+                        .startObject("properties")
+                            .startObject("location")
+                                .field("type", "wkt")
+                                .startObject("derive")
+                                    .field("centroid", "centroid")
+                                .endObject()
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        try {
+            client().admin().indices().prepareCreate("missing_sub_field").addMapping("my_type", mapping).execute().actionGet();
+            fail("expected missing sub-field");
+        } catch (MapperParsingException e) {
+            assertThat(e.getMessage(), containsString("derives into [centroid], which is not one of its fields"));
+        }
+    }
+
+    public void testDeriveIntoWrongType() throws Exception {
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject("my_type")
+                        .startObject("properties")
+                            .startObject("location")
+                                .field("type", "wkt")
+                                .startObject("derive")
+                                    .field("centroid", "centroid")
+                                .endObject()
+                                .startObject("fields")
+                                    .startObject("centroid")
+                                        .field("type", "double")
+                                    .endObject()
+                                .endObject()
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        try {
+            client().admin().indices().prepareCreate("wrong_type").addMapping("my_type", mapping).execute().actionGet();
+            fail("expected wrong sub-field type");
+        } catch (MapperParsingException e) {
+            assertThat(e.getMessage(), containsString("cannot derive centroid into [centroid] of type [double]"));
+        }
+
+        mapping = mapping.replace("\"centroid\":\"centroid\"", "\"centroid\":\"area\"").replace("double", "geo_point");
+        try {
+            client().admin().indices().prepareCreate("wrong_type").addMapping("my_type", mapping).execute().actionGet();
+            fail("expected wrong sub-field type");
+        } catch (MapperParsingException e) {
+            assertThat(e.getMessage(), containsString("cannot derive area into [centroid] of type [geo_point]"));
+        }
+    }
+
+    public void testCellBudget() throws Exception {
+        final String index = "cell_budget";
+        final String type = "my_type_6";
+
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject(type)
+                        .startObject("properties")
+                            .startObject("region")
+                                .field("type", "wkt")
+                                .field("tree", "quadtree")
+                                .field("tree_levels", 20)
+                                .field("compact_cells", true)
+                                .field("max_cells_per_shape", 100)
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        client().admin().indices().prepareCreate(index).addMapping(type, mapping).execute().actionGet();
+        ensureGreen();
+
+        Map<String, Object> region = getFieldMapping(index, type, "region");
+        assertThat(region.get("compact_cells"), equalTo((Object) true));
+        assertThat(region.get("max_cells_per_shape"), equalTo((Object) 100));
+
+        client()
+        .prepareIndex(index, type, "1")
+        .setSource(jsonBuilder()
+                .startObject()
+                    .field("region", "POLYGON ((-10 35, 5 35, 20 45, 30 60, 10 70, -10 60, -10 35))")
+                .endObject()
+        )
+        .setRefresh(true)
+        .execute()
+        .actionGet();
+
+        // interior, near the boundary, and outside the polygon
+        assertRegionHits(index, ShapeBuilder.newEnvelope().topLeft(0, 55).bottomRight(1, 54), 1);
+        assertRegionHits(index, ShapeBuilder.newEnvelope().topLeft(-10.5, 50.5).bottomRight(-9.5, 49.5), 1);
+        assertRegionHits(index, ShapeBuilder.newEnvelope().topLeft(-30, 20).bottomRight(-20, 10), 0);
+    }
+
+    public void testCellBudgetTermStrategy() throws Exception {
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject("my_type")
+                        .startObject("properties")
+                            .startObject("location")
+                                .field("type", "wkt")
+                                .field("strategy", "term")
+                                .field("max_cells_per_shape", 100)
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        try {
+            client().admin().indices().prepareCreate("cell_budget_term").addMapping("my_type", mapping).execute().actionGet();
+            fail("expected unsupported strategy");
+        } catch (MapperParsingException e) {
+            assertThat(e.getMessage(), containsString("not supported by the term strategy"));
+        }
+    }
+
+    public void testTessellateMapping() throws Exception {
+        final String index = "tessellate";
+        final String type = "my_type_7";
+
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject(type)
+                        .startObject("properties")
+                            .startObject("region")
+                                .field("type", "wkt")
+                                .field("tessellate", true)
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        client().admin().indices().prepareCreate(index).addMapping(type, mapping).execute().actionGet();
+        ensureGreen();
+
+        assertThat(getFieldMapping(index, type, "region").get("tessellate"), equalTo((Object) true));
+
+        String update = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject(type)
+                        .startObject("properties")
+                            .startObject("region")
+                                .field("type", "wkt")
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        try {
+            client().admin().indices().preparePutMapping(index).setType(type).setSource(update).get();
+            fail("expected tessellate conflict");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("has different [tessellate]"));
+        }
+
+        try {
+            client().admin().indices().prepareCreate("tessellate_cells").addMapping(type, cellBudgetMapping(type, false))
+                    .execute().actionGet();
+            fail("expected max_cells_per_shape to require index_cells");
+        } catch (MapperParsingException e) {
+            assertThat(e.getMessage(), containsString("cannot be combined with tessellate without index_cells"));
+        }
+
+        client().admin().indices().prepareCreate("tessellate_cells").addMapping(type, cellBudgetMapping(type, true))
+                .execute().actionGet();
+        ensureGreen();
+        assertThat(getFieldMapping("tessellate_cells", type, "region").get("max_cells_per_shape"), equalTo((Object) 100));
+        assertThat(getFieldMapping("tessellate_cells", type, "region").get("index_cells"), equalTo((Object) true));
+    }
+
+    private static String cellBudgetMapping(String type, boolean indexCells) throws IOException {
+        return XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject(type)
+                        .startObject("properties")
+                            .startObject("region")
+                                .field("type", "wkt")
+                                .field("tessellate", true)
+                                .field("index_cells", indexCells)
+                                .field("max_cells_per_shape", 100)
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+    }
+
+    private void assertRegionHits(String index, ShapeBuilder shape, long hits) {
+        SearchResponse searchResponse = client()
+                .prepareSearch(index)
+                .setQuery(geoIntersectionQuery("region", shape))
+                .execute()
+                .actionGet();
+
+        assertSearchResponse(searchResponse);
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(hits));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> getFieldMapping(String index, String type, String field) throws IOException {
+        Map<String, Object> mapping = client().admin().indices().prepareGetMappings(index).get().getMappings().get(index).get(type)
+                .getSourceAsMap();
+        return (Map<String, Object>) ((Map<String, Object>) mapping.get("properties")).get(field);
+    }
+
     private String[] initWktSimple() throws IOException {
         final String index = "my_index";
         final String type = "my_type";
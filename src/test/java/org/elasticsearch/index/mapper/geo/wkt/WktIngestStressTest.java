@@ -0,0 +1,226 @@
+package org.elasticsearch.index.mapper.geo.wkt;
+
+import org.elasticsearch.action.admin.indices.stats.CommonStats;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.geo.builders.BasePolygonBuilder;
+import org.elasticsearch.common.geo.builders.ShapeBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.test.EsSingleWktMockNodeTestCase;
+import org.elasticsearch.test.geo.RandomShapeGenerator;
+import org.elasticsearch.test.geo.RandomShapeGenerator.ShapeType;
+
+import com.spatial4j.core.exception.InvalidShapeException;
+import com.spatial4j.core.io.WKTWriter;
+import com.spatial4j.core.shape.Rectangle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Ingest stress harness for the {@link WktFieldMapper}.
+ * <p>
+ * Bulk-indexes a mix of random points, polygons and multipolygons from
+ * several concurrent client threads into the local node, once per mapping
+ * configuration, and logs docs/sec, p50/p99 bulk latency, heap and segment
+ * size for each configuration. It only runs on purpose, when
+ * {@code tests.wkt.stress.docs} is set, e.g.
+ * {@code mvn test -Dtests.class=org.elasticsearch.index.mapper.geo.wkt.WktIngestStressTest -Dtests.wkt.stress.docs=10000};
+ * the load shape can be changed with system properties:
+ * <ul>
+ * <li>{@code tests.wkt.stress.docs}: number of documents per configuration</li>
+ * <li>{@code tests.wkt.stress.threads}: number of concurrent client threads</li>
+ * <li>{@code tests.wkt.stress.bulk_size}: number of documents per bulk request</li>
+ * <li>{@code tests.wkt.stress.mix}: relative weights, e.g. {@code point:5,polygon:3,multipolygon:2}</li>
+ * <li>{@code tests.wkt.stress.configs}: mappings as {@code tree:tree_levels[:points_only]},
+ * e.g. {@code geohash:6,quadtree:12,geohash:6:points_only}</li>
+ * </ul>
+ * Points only configurations only receive the point part of the mix.
+ */
+public class WktIngestStressTest extends EsSingleWktMockNodeTestCase {
+
+    private static final String INDEX = "wkt_stress";
+    private static final String TYPE = "stress_type";
+
+    private static final Rectangle WEST = WktFieldMapper.SPATIAL_CONTEXT.makeRectangle(-40, -20, 20, 40);
+    private static final Rectangle EAST = WktFieldMapper.SPATIAL_CONTEXT.makeRectangle(20, 40, 20, 40);
+
+    public void testIngest() throws Exception {
+        assumeTrue("set tests.wkt.stress.docs to run the stress harness", System.getProperty("tests.wkt.stress.docs") != null);
+        final int docs = Integer.getInteger("tests.wkt.stress.docs");
+        final int threads = Integer.getInteger("tests.wkt.stress.threads", 2);
+        final int bulkSize = Integer.getInteger("tests.wkt.stress.bulk_size", 20);
+        final String mix = System.getProperty("tests.wkt.stress.mix", "point:5,polygon:3,multipolygon:2");
+        final String configs = System.getProperty("tests.wkt.stress.configs", "geohash:4,quadtree:10,geohash:6:points_only");
+
+        for (String config : configs.split(",")) {
+            String[] parts = config.trim().split(":");
+            boolean pointsOnly = parts.length > 2 && "points_only".equals(parts[2]);
+            List<String> shapes = randomShapes(random(), docs, pointsOnly ? "point:1" : mix);
+            run(parts[0], Integer.parseInt(parts[1]), pointsOnly, shapes, threads, bulkSize);
+        }
+    }
+
+    private void run(String tree, int treeLevels, boolean pointsOnly, final List<String> shapes, int threads, final int bulkSize)
+            throws Exception {
+        createIndex(tree, treeLevels, pointsOnly);
+
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        int from;
+                        while ((from = next.getAndAdd(bulkSize)) < shapes.size()) {
+                            latencies.add(bulk(shapes, from, Math.min(from + bulkSize, shapes.size())));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        long took = System.nanoTime() - start;
+
+        client().admin().indices().prepareRefresh(INDEX).get();
+        assertThat(client().prepareSearch(INDEX).setSize(0).get().getHits().getTotalHits(), equalTo((long) shapes.size()));
+
+        Collections.sort(latencies);
+        Runtime runtime = Runtime.getRuntime();
+        CommonStats stats = client().admin().indices().prepareStats(INDEX).setStore(true).setSegments(true).get().getTotal();
+        logger.info(String.format(Locale.ROOT,
+                "tree [%s], tree_levels [%d], points_only [%b]: %d docs, %.1f docs/sec, bulk p50 %.1f ms, p99 %.1f ms, "
+                        + "heap used %d MB, store %s, segments %d (%s memory)",
+                tree, treeLevels, pointsOnly, shapes.size(), shapes.size() / (took / 1e9), percentile(latencies, 50),
+                percentile(latencies, 99), (runtime.totalMemory() - runtime.freeMemory()) >> 20, stats.getStore().getSize(),
+                stats.getSegments().getCount(), stats.getSegments().getMemory()));
+
+        client().admin().indices().prepareDelete(INDEX).get();
+    }
+
+    /**
+     * Indexes the shapes in {@code [from, to)} in one bulk request.
+     *
+     * @return The latency of the bulk request in nanoseconds.
+     */
+    private static long bulk(List<String> shapes, int from, int to) {
+        try {
+            BulkRequestBuilder bulk = client().prepareBulk();
+            for (int i = from; i < to; i++) {
+                bulk.add(client().prepareIndex(INDEX, TYPE, Integer.toString(i))
+                        .setSource(jsonBuilder().startObject().field("location", shapes.get(i)).endObject()));
+            }
+            long start = System.nanoTime();
+            BulkResponse response = bulk.get();
+            long took = System.nanoTime() - start;
+            assertFalse(response.buildFailureMessage(), response.hasFailures());
+            return took;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static double percentile(List<Long> sortedNanos, int percentile) {
+        if (sortedNanos.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedNanos.size()) - 1;
+        return sortedNanos.get(Math.max(0, index)) / 1e6;
+    }
+
+    /**
+     * Generates the WKT corpus up front, so shape generation is not part of
+     * the measured ingest.
+     */
+    private static List<String> randomShapes(Random random, int count, String mix) {
+        List<String> types = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int total = 0;
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            types.add(parts[0]);
+            total += Integer.parseInt(parts[1]);
+            weights.add(total);
+        }
+
+        WKTWriter writer = new WKTWriter();
+        List<String> shapes = new ArrayList<>(count);
+        while (shapes.size() < count) {
+            int pick = random.nextInt(total);
+            int i = 0;
+            while (pick >= weights.get(i)) {
+                i++;
+            }
+            try {
+                shapes.add(writer.toString(randomShape(random, types.get(i)).build()));
+            } catch (InvalidShapeException e) {
+                // RandomShapeGenerator occasionally produces invalid shapes, try again
+            }
+        }
+        return shapes;
+    }
+
+    private static ShapeBuilder randomShape(Random random, String type) {
+        switch (type) {
+        case "point":
+            return RandomShapeGenerator.createShapeWithin(random, EAST, ShapeType.POINT);
+        case "polygon":
+            return RandomShapeGenerator.createShapeWithin(random, random.nextBoolean() ? WEST : EAST, ShapeType.POLYGON);
+        case "multipolygon":
+            // draw the parts from disjoint areas, so they never overlap
+            return ShapeBuilder.newMultiPolygon()
+                    .polygon((BasePolygonBuilder<?>) RandomShapeGenerator.createShapeWithin(random, WEST, ShapeType.POLYGON))
+                    .polygon((BasePolygonBuilder<?>) RandomShapeGenerator.createShapeWithin(random, EAST, ShapeType.POLYGON));
+        default:
+            throw new IllegalArgumentException("unknown shape type [" + type + "] in mix");
+        }
+    }
+
+    private void createIndex(String tree, int treeLevels, boolean pointsOnly) throws IOException {
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject(TYPE)
+                        .startObject("properties")
+                            .startObject("location")
+                                .field("type", "wkt")
+                                .field("tree", tree)
+                                .field("tree_levels", treeLevels)
+                                .field("points_only", pointsOnly)
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        client()
+        .admin()
+        .indices()
+        .prepareCreate(INDEX)
+        .addMapping(TYPE, mapping)
+        .execute()
+        .actionGet();
+
+        ensureGreen();
+    }
+}
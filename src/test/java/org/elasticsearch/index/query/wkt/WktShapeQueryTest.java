@@ -0,0 +1,213 @@
+package org.elasticsearch.index.query.wkt;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.geo.ShapeRelation;
+import org.elasticsearch.common.geo.builders.ShapeBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.test.EsSingleWktMockNodeTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests for the {@link WktShapeQueryParser}.
+ */
+public class WktShapeQueryTest extends EsSingleWktMockNodeTestCase {
+
+    private static final String INDEX = "wkt_shape";
+    private static final String TYPE = "my_type";
+
+    public void testTessellated() throws Exception {
+        createIndex(true);
+
+        // exact, the prefix tree would match the polygon for the hole
+        assertHits("ENVELOPE (4.5, 5.5, 5.5, 4.5)", ShapeRelation.INTERSECTS);
+        assertHits("ENVELOPE (3, 5, 5, 3)", ShapeRelation.INTERSECTS, "1");
+        assertHits("POINT (25 25)", ShapeRelation.INTERSECTS, "2");
+        assertHits("POLYGON ((39 39, 41 39, 41 41, 39 41, 39 39))", ShapeRelation.INTERSECTS, "3");
+        assertHits("POINT (60.5 60.5)", ShapeRelation.INTERSECTS, "4");
+
+        assertHits("ENVELOPE (-1, 11, 11, -1)", ShapeRelation.WITHIN, "1");
+        assertHits("ENVELOPE (1, 11, 11, -1)", ShapeRelation.WITHIN);
+        assertHits("ENVELOPE (49, 62, 62, 49)", ShapeRelation.WITHIN, "4");
+
+        assertHits("POINT (1 1)", ShapeRelation.CONTAINS, "1");
+        assertHits("POINT (5 5)", ShapeRelation.CONTAINS);
+        assertHits("ENVELOPE (1, 9, 3, 1)", ShapeRelation.CONTAINS, "1");
+
+        assertHits("ENVELOPE (-1, 35, 35, -1)", ShapeRelation.DISJOINT, "3", "4");
+    }
+
+    public void testPrefixTree() throws Exception {
+        createIndex(false);
+
+        assertHits("ENVELOPE (3, 5, 5, 3)", ShapeRelation.INTERSECTS, "1");
+        assertHits("POLYGON ((39 39, 41 39, 41 41, 39 41, 39 39))", ShapeRelation.INTERSECTS, "3");
+        assertHits("ENVELOPE (-1, 11, 11, -1)", ShapeRelation.WITHIN, "1");
+        assertHits("ENVELOPE (-1, 35, 35, -1)", ShapeRelation.DISJOINT, "3", "4");
+    }
+
+    public void testTessellatedExists() throws Exception {
+        createIndex(true, false);
+        client().prepareIndex(INDEX, TYPE, "5").setSource(jsonBuilder().startObject().field("name", "Document5").endObject())
+                .setRefresh(true).get();
+
+        // the prefix tree cells are not indexed, only the field name
+        assertHitCount(geoShapeSearch(), 0);
+
+        SearchResponse searchResponse = client().prepareSearch(INDEX).setQuery(QueryBuilders.existsQuery("location")).get();
+        assertSearchResponse(searchResponse);
+        assertHitCount(searchResponse, 4);
+
+        searchResponse = client().prepareSearch(INDEX).setQuery(QueryBuilders.missingQuery("location")).get();
+        assertSearchResponse(searchResponse);
+        assertHitCount(searchResponse, 1);
+        assertThat(searchResponse.getHits().getAt(0).id(), equalTo("5"));
+    }
+
+    public void testTessellatedIndexCells() throws Exception {
+        createIndex(true, true);
+
+        assertHitCount(geoShapeSearch(), 2);
+        assertHits("ENVELOPE (4.5, 5.5, 5.5, 4.5)", ShapeRelation.INTERSECTS);
+
+        SearchResponse searchResponse = client().prepareSearch(INDEX).setQuery(QueryBuilders.existsQuery("location")).get();
+        assertSearchResponse(searchResponse);
+        assertHitCount(searchResponse, 4);
+    }
+
+    public void testTessellateTypeConflict() throws Exception {
+        createIndex(true, false);
+
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject("other_type")
+                        .startObject("properties")
+                            .startObject("location")
+                                .field("type", "wkt")
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+        try {
+            client().admin().indices().preparePutMapping(INDEX).setType("other_type").setSource(mapping).get();
+            fail("expected a tessellate conflict");
+        } catch (MapperParsingException e) {
+            assertThat(e.getMessage(), containsString("must be the same as in type [" + TYPE + "]"));
+        }
+    }
+
+    public void testTessellatedCollection() throws Exception {
+        createIndex(true);
+        index("5", "GEOMETRYCOLLECTION (POINT (70 70), POLYGON ((80 80, 81 80, 81 81, 80 81, 80 80)))");
+        client().admin().indices().prepareRefresh(INDEX).get();
+
+        assertHits("POINT (80.5 80.5)", ShapeRelation.INTERSECTS, "5");
+        assertHits("ENVELOPE (69, 82, 82, 69)", ShapeRelation.WITHIN, "5");
+        assertHits("GEOMETRYCOLLECTION (POINT (40 40), POINT (80.5 80.5))", ShapeRelation.INTERSECTS, "3", "5");
+        assertHits("GEOMETRYCOLLECTION (POINT (1 1), POINT (9 9))", ShapeRelation.CONTAINS, "1");
+        assertHits("GEOMETRYCOLLECTION (POINT (1 1), POINT (5 5))", ShapeRelation.CONTAINS);
+    }
+
+    public void testInvalidShape() throws Exception {
+        createIndex(true);
+
+        try {
+            client().prepareSearch(INDEX).setQuery(new WktShapeQueryBuilder("location", "POLYGON ((0 0, 1 1")).get();
+            fail("expected invalid shape");
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.toString(), containsString("failed to parse shape"));
+        }
+
+        try {
+            client().prepareSearch(INDEX).setQuery(new WktShapeQueryBuilder("name", "POINT (1 1)")).get();
+            fail("expected no wkt field");
+        } catch (SearchPhaseExecutionException e) {
+            assertThat(e.toString(), containsString("is not a wkt field"));
+        }
+    }
+
+    private void assertHits(String shape, ShapeRelation relation, String... ids) {
+        SearchResponse searchResponse = client()
+                .prepareSearch(INDEX)
+                .setQuery(new WktShapeQueryBuilder("location", shape).relation(relation))
+                .execute()
+                .actionGet();
+
+        assertSearchResponse(searchResponse);
+        Set<String> hits = new TreeSet<>();
+        for (SearchHit hit : searchResponse.getHits()) {
+            hits.add(hit.id());
+        }
+        assertThat(relation + " " + shape, hits, equalTo((Set<String>) new TreeSet<>(Arrays.asList(ids))));
+    }
+
+    private SearchResponse geoShapeSearch() {
+        SearchResponse searchResponse = client()
+                .prepareSearch(INDEX)
+                .setQuery(QueryBuilders.geoShapeQuery("location", ShapeBuilder.newEnvelope()
+                        .topLeft(new Coordinate(-1, 35)).bottomRight(new Coordinate(35, -1))))
+                .get();
+        assertSearchResponse(searchResponse);
+        return searchResponse;
+    }
+
+    private void createIndex(boolean tessellate) throws IOException {
+        createIndex(tessellate, false);
+    }
+
+    private void createIndex(boolean tessellate, boolean indexCells) throws IOException {
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject(TYPE)
+                        .startObject("properties")
+                            .startObject("name")
+                                .field("type", "string")
+                            .endObject()
+                            .startObject("location")
+                                .field("type", "wkt")
+                                .field("tessellate", tessellate)
+                                .field("index_cells", indexCells)
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        client().admin().indices().prepareCreate(INDEX).addMapping(TYPE, mapping).execute().actionGet();
+        ensureGreen();
+
+        index("1", "POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0), (4 4, 6 4, 6 6, 4 6, 4 4))");
+        index("2", "LINESTRING (20 20, 30 30)");
+        index("3", "POINT (40 40)");
+        index("4", "POINT (50 50)", "POLYGON ((60 60, 61 60, 61 61, 60 61, 60 60))");
+        client().admin().indices().prepareRefresh(INDEX).get();
+    }
+
+    private void index(String id, String... wkt) throws IOException {
+        client()
+        .prepareIndex(INDEX, TYPE, id)
+        .setSource(jsonBuilder()
+                .startObject()
+                    .field("name", "Document" + id)
+                    .array("location", wkt)
+                .endObject()
+        )
+        .execute()
+        .actionGet();
+    }
+}
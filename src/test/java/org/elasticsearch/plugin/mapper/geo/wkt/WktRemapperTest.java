@@ -0,0 +1,121 @@
+package org.elasticsearch.plugin.mapper.geo.wkt;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.geo.builders.ShapeBuilder;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.test.EsSingleWktMockNodeTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.index.query.QueryBuilders.geoIntersectionQuery;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests for the {@link WktRemapper}.
+ */
+public class WktRemapperTest extends EsSingleWktMockNodeTestCase {
+
+    public void testRemap() throws Exception {
+        createIndex("source", 3, "geohash", 4);
+        createIndex("dest", 1, "quadtree", 12);
+
+        int docs = randomIntBetween(10, 50);
+        for (int i = 0; i < docs; i++) {
+            client()
+            .prepareIndex("source", "my_type", Integer.toString(i))
+            .setSource(jsonBuilder()
+                    .startObject()
+                        .field("name", "Document" + i)
+                        .field("location", "POINT (" + (i % 10) + " " + (i / 10) + ")")
+                    .endObject()
+            )
+            .execute()
+            .actionGet();
+        }
+        client()
+        .prepareIndex("source", "my_type", "routed")
+        .setRouting("my_routing")
+        .setSource(jsonBuilder()
+                .startObject()
+                    .field("name", "Routed")
+                    .field("location", "POINT (20 20)")
+                .endObject()
+        )
+        .execute()
+        .actionGet();
+        client().admin().indices().prepareRefresh("source").get();
+
+        WktRemapper.Result result = new WktRemapper(client(), getInstanceFromNode(ThreadPool.class).generic(), "source", "dest")
+                .batchSize(randomIntBetween(1, 20))
+                .concurrency(randomIntBetween(1, 3))
+                .docsPerSecond(randomBoolean() ? -1 : 10000)
+                .remap();
+
+        assertThat(result.shards(), equalTo(3));
+        assertThat(result.docs(), equalTo((long) docs + 1));
+        assertThat(result.failed(), equalTo(0l));
+
+        ShapeBuilder shape = ShapeBuilder.newEnvelope().topLeft(-0.5, 0.5).bottomRight(0.5, -0.5);
+
+        SearchResponse searchResponse = client()
+                .prepareSearch("dest")
+                .setQuery(geoIntersectionQuery("location", shape))
+                .execute()
+                .actionGet();
+
+        assertSearchResponse(searchResponse);
+        assertThat(searchResponse.getHits().getTotalHits(), equalTo(1l));
+        assertThat(searchResponse.getHits().getAt(0).id(), equalTo("0"));
+
+        GetResponse routed = client().prepareGet("dest", "my_type", "routed").setRouting("my_routing")
+                .setFields("_routing").get();
+        assertTrue(routed.isExists());
+        assertThat(routed.getField("_routing").getValue(), equalTo((Object) "my_routing"));
+    }
+
+    public void testMissingSource() throws Exception {
+        try {
+            new WktRemapper(client(), getInstanceFromNode(ThreadPool.class).generic(), "missing", "dest").remap();
+            fail("expected missing index");
+        } catch (IndexNotFoundException e) {
+            assertThat(e.getIndex(), equalTo("missing"));
+        }
+    }
+
+    private void createIndex(String index, int shards, String tree, int treeLevels) throws IOException {
+        String mapping = XContentFactory.jsonBuilder()
+                .startObject()
+                    .startObject("my_type")
+                        .startObject("properties")
+                            .startObject("name")
+                                .field("type", "string")
+                            .endObject()
+                            .startObject("location")
+                                .field("type", "wkt")
+                                .field("tree", tree)
+                                .field("tree_levels", treeLevels)
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject()
+                .string();
+
+        client()
+        .admin()
+        .indices()
+        .prepareCreate(index)
+        .setSettings(Settings.settingsBuilder().put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, shards))
+        .addMapping("my_type", mapping)
+        .execute()
+        .actionGet();
+
+        ensureGreen();
+    }
+}
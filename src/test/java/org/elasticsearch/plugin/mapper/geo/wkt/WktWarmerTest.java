@@ -0,0 +1,113 @@
+package org.elasticsearch.plugin.mapper.geo.wkt;
+
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.indices.IndicesLifecycle;
+import org.elasticsearch.test.EsSingleWktMockNodeTestCase;
+
+import java.io.IOException;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Tests for the {@link WktWarmer}.
+ */
+public class WktWarmerTest extends EsSingleWktMockNodeTestCase {
+
+    public void testWarm() throws Exception {
+        XContentBuilder mapping = jsonBuilder()
+                .startObject()
+                    .startObject("my_type")
+                        .startObject("properties")
+                            .startObject("location")
+                                .field("type", "wkt")
+                            .endObject()
+                            .startObject("address")
+                                .startObject("properties")
+                                    .startObject("location")
+                                        .field("type", "wkt")
+                                        .field("tree", "quadtree")
+                                        .field("points_only", true)
+                                    .endObject()
+                                .endObject()
+                            .endObject()
+                            .startObject("parcel")
+                                .field("type", "wkt")
+                                .array("allowed_types", "POLYGON")
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject();
+
+        IndexService indexService = createIndex("warm", Settings.EMPTY, "my_type", mapping);
+
+        int iterations = randomIntBetween(1, 3);
+        WktWarmer warmer = new WktWarmer(Settings.settingsBuilder()
+                .put(WktWarmer.ITERATIONS, iterations)
+                .put(WktWarmer.MAX_TIME, "1h")
+                .build(),
+                getInstanceFromNode(IndicesLifecycle.class));
+
+        // 2 sizes of every shape type, of points, and of both polygons
+        assertThat(warmer.warm(indexService.mapperService()), equalTo((16 + 2 + 4) * iterations));
+
+        warmer = new WktWarmer(Settings.settingsBuilder().put(WktWarmer.MAX_TIME, "0s").build(),
+                getInstanceFromNode(IndicesLifecycle.class));
+        assertThat(warmer.warm(indexService.mapperService()), equalTo(0));
+    }
+
+    public void testWarmOnRecovery() throws Exception {
+        // the warmer of the node is disabled by default
+        WktWarmer nodeWarmer = getInstanceFromNode(WktWarmer.class);
+
+        WktWarmer warmer = new WktWarmer(Settings.settingsBuilder()
+                .put(WktWarmer.ENABLED, true)
+                .put(WktWarmer.ITERATIONS, 1)
+                .put(WktWarmer.MAX_TIME, "1h")
+                .build(),
+                getInstanceFromNode(IndicesLifecycle.class));
+        warmer.start();
+        try {
+            // once per configuration, not per shard, before the shards start:
+            // 2 sizes of every shape type
+            createIndex("recover", Settings.settingsBuilder().put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 3).build(),
+                    "my_type", mapping("geohash"));
+            assertThat(warmer.warmedShapes(), equalTo(16l));
+
+            // not again once the index is reopened, or for another index with
+            // the same configuration
+            client().admin().indices().prepareClose("recover").get();
+            client().admin().indices().prepareOpen("recover").get();
+            ensureGreen("recover");
+            createIndex("same_configuration", Settings.EMPTY, "my_type", mapping("geohash"));
+            assertThat(warmer.warmedShapes(), equalTo(16l));
+
+            createIndex("other_configuration", Settings.EMPTY, "my_type", mapping("quadtree"));
+            assertThat(warmer.warmedShapes(), equalTo(32l));
+        } finally {
+            warmer.stop();
+        }
+        assertThat(nodeWarmer.warmedShapes(), equalTo(0l));
+
+        // not after it is stopped
+        createIndex("after_stop", Settings.EMPTY, "my_type", mapping("legacyquadtree"));
+        assertThat(warmer.warmedShapes(), equalTo(32l));
+    }
+
+    private static XContentBuilder mapping(String tree) throws IOException {
+        return jsonBuilder()
+                .startObject()
+                    .startObject("my_type")
+                        .startObject("properties")
+                            .startObject("location")
+                                .field("type", "wkt")
+                                .field("tree", tree)
+                            .endObject()
+                        .endObject()
+                    .endObject()
+                .endObject();
+    }
+}